@@ -0,0 +1,279 @@
+package ua.knu.csc.fs;
+
+import ua.knu.csc.fs.filesystem.FakeIOException;
+import ua.knu.csc.fs.filesystem.FileSystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Copies a directory tree from the real filesystem into a volume and back.
+ * Files in subdirectories are stored in the volume under their relative path, with '/' as separator.
+ * <p>
+ * The file system can only be used by one thread, so it is always accessed from the calling thread.
+ * Files on the real filesystem are read or written by a pool of worker threads in the meantime.
+ */
+public final class BulkTransfer {
+    /**
+     * Size of buffer used to read files from the volume
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public static final class Result {
+        public final int fileCount;
+        public final long byteCount;
+        public final long elapsedNanos;
+        /**
+         * Files which could not be copied, with the reason
+         */
+        public final List<String> failures;
+
+        Result(int fileCount, long byteCount, long elapsedNanos, List<String> failures) {
+            this.fileCount = fileCount;
+            this.byteCount = byteCount;
+            this.elapsedNanos = elapsedNanos;
+            this.failures = failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d files, %d bytes in %d ms (%.1f KiB/s), %d failed",
+                    fileCount,
+                    byteCount,
+                    elapsedNanos / 1_000_000,
+                    elapsedNanos == 0 ? 0 : byteCount * 1e9 / elapsedNanos / 1024,
+                    failures.size()
+            );
+        }
+    }
+
+    private final FileSystem fileSystem;
+    private final int threadCount;
+
+    /**
+     * @param threadCount amount of threads for reading and writing files on the real filesystem
+     */
+    public BulkTransfer(FileSystem fileSystem, int threadCount) {
+        this.fileSystem = fileSystem;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Copy every regular file in a directory tree into the volume, existing files get overwritten.
+     * Partial copies of new files are removed. An existing file which fails half way may be left
+     * partially overwritten, this is reported in {@link Result#failures}.
+     */
+    public Result importDirectory(Path source) throws IOException {
+        long startTime = System.nanoTime();
+        List<Path> hostFiles;
+        try (Stream<Path> paths = Files.walk(source)) {
+            hostFiles = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        Set<String> existingNames = new HashSet<>(fileSystem.getFileNames());
+        int maxFileSize = fileSystem.getMaxFileSize();
+
+        int fileCount = 0;
+        long byteCount = 0;
+        List<String> failures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            // Keep a few files ahead being read, but not the whole tree in memory at once
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+            int nextFile = 0;
+            for (int i = 0; i < hostFiles.size(); i++) {
+                while (nextFile < hostFiles.size() && pending.size() < threadCount * 2) {
+                    Path hostFile = hostFiles.get(nextFile++);
+                    pending.add(executor.submit(() -> readHostFile(hostFile, maxFileSize)));
+                }
+
+                String name = getVolumeName(source.relativize(hostFiles.get(i)));
+                byte[] data;
+                try {
+                    data = waitFor(pending.remove());
+                } catch (IOException e) {
+                    failures.add(name + ": " + e.getMessage());
+                    continue;
+                }
+
+                boolean existing = existingNames.contains(name);
+                boolean created = false;
+                try {
+                    if (!existing) {
+                        fileSystem.create(name);
+                        created = true;
+                    }
+                    int openFile = fileSystem.openFile(name);
+                    try {
+                        fileSystem.truncate(openFile, 0);
+                        fileSystem.write(openFile, data, data.length);
+                    } finally {
+                        fileSystem.closeFile(openFile);
+                    }
+                    fileCount++;
+                    byteCount += data.length;
+                } catch (FakeIOException e) {
+                    if (!created) {
+                        // Nothing to remove, but an existing file may have lost its old contents
+                        failures.add(name + ": " + e.getMessage() + (existing ? ", file may be partially overwritten" : ""));
+                        continue;
+                    }
+                    failures.add(name + ": " + e.getMessage());
+                    // Don't leave a partial copy behind
+                    try {
+                        fileSystem.destroy(name);
+                    } catch (FakeIOException destroyException) {
+                        failures.add(name + ": partial copy could not be removed: " + destroyException.getMessage());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Result(fileCount, byteCount, System.nanoTime() - startTime, failures);
+    }
+
+    /**
+     * Read a file on the real filesystem in chunks. Files which can't fit into the volume are rejected
+     * before anything is read, so huge files don't end up in memory and existing files in the volume are left alone.
+     */
+    private static byte[] readHostFile(Path hostFile, int maxFileSize) throws IOException {
+        if (Files.size(hostFile) > maxFileSize)
+            throw new IOException("file is too big, max file size is " + maxFileSize);
+        try (InputStream input = Files.newInputStream(hostFile)) {
+            // File may have grown since its size was checked, so never read more than one byte past the limit
+            byte[] data = input.readNBytes(maxFileSize + 1);
+            if (data.length > maxFileSize)
+                throw new IOException("file is too big, max file size is " + maxFileSize);
+            return data;
+        }
+    }
+
+    /**
+     * Copy every file in the volume into a directory, subdirectories are created as needed
+     */
+    public Result exportDirectory(Path destination) throws IOException {
+        long startTime = System.nanoTime();
+        Path root = destination.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+
+        int fileCount = 0;
+        long byteCount = 0;
+        List<String> failures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            // Each write returns amount of bytes written
+            ArrayDeque<Future<Integer>> pending = new ArrayDeque<>();
+            ArrayDeque<String> pendingNames = new ArrayDeque<>();
+            for (String name : fileSystem.getFileNames()) {
+                Path hostFile = root.resolve(name).normalize();
+                if (!hostFile.startsWith(root) || hostFile.equals(root)) {
+                    failures.add(name + ": not a valid relative path");
+                    continue;
+                }
+
+                byte[] data;
+                try {
+                    data = readFile(name);
+                } catch (FakeIOException e) {
+                    failures.add(name + ": " + e.getMessage());
+                    continue;
+                }
+
+                // Don't let too many files pile up in memory
+                if (pending.size() >= threadCount * 2) {
+                    int writeCount = collectWrite(pending, pendingNames, failures);
+                    if (writeCount >= 0) {
+                        fileCount++;
+                        byteCount += writeCount;
+                    }
+                }
+                pending.add(executor.submit(() -> {
+                    Files.createDirectories(hostFile.getParent());
+                    Files.write(hostFile, data);
+                    return data.length;
+                }));
+                pendingNames.add(name);
+            }
+            while (!pending.isEmpty()) {
+                int writeCount = collectWrite(pending, pendingNames, failures);
+                if (writeCount >= 0) {
+                    fileCount++;
+                    byteCount += writeCount;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Result(fileCount, byteCount, System.nanoTime() - startTime, failures);
+    }
+
+    private byte[] readFile(String name) throws FakeIOException {
+        int openFile = fileSystem.openFile(name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int readCount;
+            while ((readCount = fileSystem.read(openFile, buffer, buffer.length)) > 0)
+                output.write(buffer, 0, readCount);
+            return output.toByteArray();
+        } finally {
+            fileSystem.closeFile(openFile);
+        }
+    }
+
+    /**
+     * Wait for the oldest write to the real filesystem to finish
+     * @return amount of bytes written, -1 if writing failed
+     */
+    private static int collectWrite(
+            ArrayDeque<Future<Integer>> pending,
+            ArrayDeque<String> pendingNames,
+            List<String> failures
+    ) {
+        String name = pendingNames.remove();
+        try {
+            return waitFor(pending.remove());
+        } catch (IOException e) {
+            failures.add(name + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static String getVolumeName(Path relativePath) {
+        StringBuilder sb = new StringBuilder();
+        for (Path part : relativePath) {
+            if (sb.length() != 0)
+                sb.append('/');
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+}
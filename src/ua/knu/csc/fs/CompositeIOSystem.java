@@ -0,0 +1,81 @@
+package ua.knu.csc.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * I/O device built out of several member devices, requests to different members can be served in parallel.
+ */
+public abstract class CompositeIOSystem extends IOSystem {
+    protected final IOSystem[] members;
+    private final ExecutorService executor;
+
+    protected CompositeIOSystem(IOSystem[] members, int blockCount) {
+        super(blockCount, checkMembers(members));
+        this.members = members.clone();
+        this.executor = Executors.newFixedThreadPool(members.length, runnable -> {
+            Thread thread = new Thread(runnable, "io-member");
+            // Should not keep JVM alive, there is no way to close an I/O device
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        long usage = 0;
+        for (IOSystem member : members)
+            usage += member.getMemoryUsage();
+        return usage;
+    }
+
+    @Override
+    public boolean canReadConcurrently() {
+        for (IOSystem member : members) {
+            if (!member.canReadConcurrently())
+                return false;
+        }
+        return true;
+    }
+
+    private static int checkMembers(IOSystem[] members) {
+        if (members.length == 0)
+            throw new IllegalArgumentException("Need at least one member device");
+        for (IOSystem member : members) {
+            if (member.blockSize != members[0].blockSize)
+                throw new IllegalArgumentException("All member devices must have the same block size");
+        }
+        return members[0].blockSize;
+    }
+
+    /**
+     * Run tasks in parallel and wait for all of them to finish.
+     * The last task is run on the calling thread.
+     */
+    protected void runInParallel(List<Runnable> tasks) {
+        if (tasks.isEmpty())
+            return;
+
+        List<Future<?>> futures = new ArrayList<>(tasks.size() - 1);
+        for (int i = 0; i < tasks.size() - 1; i++)
+            futures.add(executor.submit(tasks.get(i)));
+        tasks.get(tasks.size() - 1).run();
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for I/O", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
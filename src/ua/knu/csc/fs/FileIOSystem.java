@@ -0,0 +1,98 @@
+package ua.knu.csc.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * I/O device which stores blocks in a real file, block i starts at byte i * {@link #blockSize}.
+ * Blocks are not kept in memory. Errors of the real file are thrown as {@link UncheckedIOException}.
+ */
+public final class FileIOSystem extends IOSystem implements Closeable {
+    private final FileChannel channel;
+
+    /**
+     * @param file backing file, created if it does not exist and extended to the size of the device
+     */
+    public FileIOSystem(Path file, int blockCount, int blockSize) throws IOException {
+        super(blockCount, blockSize);
+        this.channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        long size = (long) blockCount * blockSize;
+        if (channel.size() < size) {
+            //Writing the last byte extends the file, the rest reads as zeros
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        readBlocks(new int[]{i}, 1, buffer, 0);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        if (buffer.length < blockSize)
+            throw new IllegalArgumentException("Buffer is too small");
+        writeBlocks(new int[]{i}, 1, buffer, 0);
+    }
+
+    @Override
+    public void readBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        try {
+            for (int j = 0; j < count; j++) {
+                int start = offset + j * blockSize;
+                ByteBuffer destination = ByteBuffer.wrap(buffer, start, blockSize);
+                long position = (long) addresses[j] * blockSize;
+                while (destination.hasRemaining()) {
+                    int read = channel.read(destination, position + destination.position() - start);
+                    if (read < 0)
+                        throw new IOException("Unexpected end of file at block " + addresses[j]);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void writeBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        try {
+            for (int j = 0; j < count; j++) {
+                int start = offset + j * blockSize;
+                ByteBuffer source = ByteBuffer.wrap(buffer, start, blockSize);
+                long position = (long) addresses[j] * blockSize;
+                while (source.hasRemaining())
+                    channel.write(source, position + source.position() - start);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Blocks are stored in the file, not in memory
+     */
+    @Override
+    public long getMemoryUsage() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public boolean canReadConcurrently() {
+        return true;
+    }
+}
@@ -3,17 +3,16 @@ package ua.knu.csc.fs;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public final class IOSystem {
-    private final byte[][] ldisk;
+/**
+ * Emulated I/O device, made of {@link #blockCount} logical blocks of {@link #blockSize} bytes each.
+ */
+public abstract class IOSystem {
     public final int blockSize;
     public final int blockCount;
-    
-    public IOSystem(int blockCount, int blockSize) {
-        ldisk = new byte[blockCount][];
-        for (int i = 0; i < blockCount; i++)
-            ldisk[i] = new byte[blockSize];
 
+    protected IOSystem(int blockCount, int blockSize) {
         this.blockCount = blockCount;
         this.blockSize = blockSize;
     }
@@ -22,18 +21,68 @@ public final class IOSystem {
      * Reads contents of logical block at address i,
      * will read {@link #blockSize} bytes into supplied array.
      */
-    public void readBlock(int i, byte[] buffer) {
-        System.arraycopy(ldisk[i], 0, buffer, 0, blockSize);
-    }
-    
+    public abstract void readBlock(int i, byte[] buffer);
+
     /**
      * Write contents of buffer into logical block at address i,
      * will write {@link #blockSize} bytes from buffer.
      */
-    public void writeBlock(int i, byte[] buffer) {
-        if (buffer.length < blockSize)
-            throw new IllegalArgumentException("Buffer is too small");
-        System.arraycopy(buffer, 0, ldisk[i], 0, blockSize);
+    public abstract void writeBlock(int i, byte[] buffer);
+
+    /**
+     * Reads several logical blocks at once,
+     * block at address addresses[i] is read into buffer starting at offset + i * {@link #blockSize}.
+     * Devices which can serve multiple blocks in parallel should override this.
+     *
+     * @param count how many addresses to use
+     */
+    public void readBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            readBlock(addresses[i], block);
+            System.arraycopy(block, 0, buffer, offset + i * blockSize, blockSize);
+        }
+    }
+
+    /**
+     * Writes several logical blocks at once,
+     * block at address addresses[i] is written from buffer starting at offset + i * {@link #blockSize}.
+     * Devices which can serve multiple blocks in parallel should override this.
+     *
+     * @param count how many addresses to use
+     */
+    public void writeBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(buffer, offset + i * blockSize, block, 0, blockSize);
+            writeBlock(addresses[i], block);
+        }
+    }
+
+    /**
+     * View of the memory where the device keeps logical block at address i, for devices which keep blocks in memory.
+     * Reading the view reads the block, and changes made through it change the block right away,
+     * without {@link #writeBlock(int, byte[])}.
+     *
+     * @return buffer of {@link #blockSize} bytes, null if the device can't give out views of its blocks
+     */
+    public ByteBuffer getBlockView(int i) {
+        return null;
+    }
+
+    /**
+     * @return true if several threads may read blocks at the same time, as long as nothing is being written.
+     * Devices which change some state on every read, like the position of a disk head, should keep the default
+     */
+    public boolean canReadConcurrently() {
+        return false;
+    }
+
+    /**
+     * @return amount of memory used for storing blocks, in bytes
+     */
+    public long getMemoryUsage() {
+        return (long) blockCount * blockSize;
     }
 
     /**
@@ -41,9 +90,11 @@ public final class IOSystem {
      */
     public void saveToFile(String saveFile) throws IOException {
         try (FileOutputStream outputStream = new FileOutputStream(saveFile)) {
-
-            for (byte[] sector : ldisk)
+            byte[] sector = new byte[blockSize];
+            for (int i = 0; i < blockCount; i++) {
+                readBlock(i, sector);
                 outputStream.write(sector);
+            }
         }
     }
 
@@ -52,9 +103,11 @@ public final class IOSystem {
      */
     public void readFromFile(String saveFile) throws IOException {
         try (FileInputStream inputStream = new FileInputStream(saveFile)) {
-            for (byte[] sector : ldisk) {
+            byte[] sector = new byte[blockSize];
+            for (int i = 0; i < blockCount; i++) {
                 if (inputStream.read(sector) != blockSize)
                     throw new RuntimeException("Wrong byte count in " + saveFile);
+                writeBlock(i, sector);
             }
         }
     }
@@ -36,6 +36,24 @@ public final class MathUtils {
         return -1;
     }
 
+    /**
+     * @param length amount of consecutive 0 bits to look for
+     * @param from first position to check, starting from most significant bit
+     * @param to positions from here on are not checked
+     * @return position of first bit in a run of 0 bits. -1 if not found.
+     */
+    public static int findZeroRun(long bitmap, int length, int from, int to) {
+        int runStart = from;
+        for (int i = from; i < to; i++) {
+            if ((bitmap & BITMASKS[i]) != 0) {
+                runStart = i + 1;
+            } else if (i - runStart + 1 == length) {
+                return runStart;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Set bit at index to 1, starting from most significant bit.
      * @return new bitmap
@@ -44,6 +62,13 @@ public final class MathUtils {
         return bitmap | BITMASKS[index];
     }
 
+    /**
+     * @return true if bit at index is 0, starting from most significant bit
+     */
+    public static boolean isZeroByte(long bitmap, int index) {
+        return (bitmap & BITMASKS[index]) == 0;
+    }
+
     public static long setZeroByte(long bitmap, int index) {
         return bitmap & ~BITMASKS[index];
     }
@@ -51,14 +76,14 @@ public final class MathUtils {
     public static void toBytes(long l, byte[] buffer) {
         for (int i = Long.BYTES - 1; i >= 0; i--) {
             buffer[i] = (byte)(l & 0xFF);
-            l = l >> 1;
+            l = l >> Byte.SIZE;
         }
     }
     
     public static long toLong(byte[] bytes) {
         long result = 0;
         for (int i = 0; i < Long.BYTES; i++) {
-            result = result << 1;
+            result = result << Byte.SIZE;
             result |= (bytes[i] & 0xFF);
         }
         return result;
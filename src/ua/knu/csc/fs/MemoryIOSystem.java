@@ -0,0 +1,61 @@
+package ua.knu.csc.fs;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * I/O device which keeps every block in its own array.
+ */
+public final class MemoryIOSystem extends IOSystem {
+    private final byte[][] ldisk;
+
+    public MemoryIOSystem(int blockCount, int blockSize) {
+        super(blockCount, blockSize);
+        ldisk = new byte[blockCount][];
+        for (int i = 0; i < blockCount; i++)
+            ldisk[i] = new byte[blockSize];
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        System.arraycopy(ldisk[i], 0, buffer, 0, blockSize);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        if (buffer.length < blockSize)
+            throw new IllegalArgumentException("Buffer is too small");
+        System.arraycopy(buffer, 0, ldisk[i], 0, blockSize);
+    }
+
+    @Override
+    public ByteBuffer getBlockView(int i) {
+        return ByteBuffer.wrap(ldisk[i]);
+    }
+
+    @Override
+    public void saveToFile(String saveFile) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(saveFile)) {
+
+            for (byte[] sector : ldisk)
+                outputStream.write(sector);
+        }
+    }
+
+    @Override
+    public void readFromFile(String saveFile) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(saveFile)) {
+            for (byte[] sector : ldisk) {
+                if (inputStream.read(sector) != blockSize)
+                    throw new RuntimeException("Wrong byte count in " + saveFile);
+            }
+        }
+    }
+
+    @Override
+    public boolean canReadConcurrently() {
+        return true;
+    }
+}
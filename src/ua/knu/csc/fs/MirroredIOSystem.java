@@ -0,0 +1,60 @@
+package ua.knu.csc.fs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RAID-1 style device: every member device holds a full copy of the data.
+ * Writes go to all members, reads are spread across members.
+ */
+public final class MirroredIOSystem extends CompositeIOSystem {
+    public MirroredIOSystem(IOSystem[] members) {
+        super(members, Arrays.stream(members).mapToInt(member -> member.blockCount).min().orElse(0));
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        members[i % members.length].readBlock(i, buffer);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        List<Runnable> tasks = new ArrayList<>(members.length);
+        for (IOSystem member : members)
+            tasks.add(() -> member.writeBlock(i, buffer));
+        runInParallel(tasks);
+    }
+
+    @Override
+    public void readBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        // Member m reads every n-th block, starting from block m
+        List<Runnable> tasks = new ArrayList<>(members.length);
+        for (int member = 0; member < Math.min(members.length, count); member++) {
+            int firstPosition = member;
+            IOSystem device = members[member];
+            tasks.add(() -> {
+                int memberCount = (count - firstPosition + members.length - 1) / members.length;
+                int[] memberAddresses = new int[memberCount];
+                for (int j = 0; j < memberCount; j++)
+                    memberAddresses[j] = addresses[firstPosition + j * members.length];
+
+                byte[] memberBuffer = new byte[memberCount * blockSize];
+                device.readBlocks(memberAddresses, memberCount, memberBuffer, 0);
+                for (int j = 0; j < memberCount; j++) {
+                    System.arraycopy(memberBuffer, j * blockSize,
+                            buffer, offset + (firstPosition + j * members.length) * blockSize, blockSize);
+                }
+            });
+        }
+        runInParallel(tasks);
+    }
+
+    @Override
+    public void writeBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        List<Runnable> tasks = new ArrayList<>(members.length);
+        for (IOSystem member : members)
+            tasks.add(() -> member.writeBlocks(addresses, count, buffer, offset));
+        runInParallel(tasks);
+    }
+}
@@ -0,0 +1,99 @@
+package ua.knu.csc.fs;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * I/O device which stores all blocks outside of the Java heap, in a few large direct buffers.
+ * Unlike {@link MemoryIOSystem}, a big disk does not create lots of objects for the GC to track.
+ */
+public final class OffHeapIOSystem extends IOSystem {
+    /**
+     * Max size of a single direct buffer, in bytes
+     */
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private final ByteBuffer[] chunks;
+    private final int blocksPerChunk;
+
+    public OffHeapIOSystem(int blockCount, int blockSize) {
+        super(blockCount, blockSize);
+        this.blocksPerChunk = Math.max(1, MAX_CHUNK_SIZE / blockSize);
+
+        int chunkCount = MathUtils.divideCeil(blockCount, blocksPerChunk);
+        this.chunks = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            int chunkBlocks = Math.min(blocksPerChunk, blockCount - i * blocksPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(chunkBlocks * blockSize);
+        }
+    }
+
+    private ByteBuffer getChunk(int i) {
+        return chunks[i / blocksPerChunk];
+    }
+
+    private int getPositionInChunk(int i) {
+        return i % blocksPerChunk * blockSize;
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        getChunk(i).get(getPositionInChunk(i), buffer, 0, blockSize);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        if (buffer.length < blockSize)
+            throw new IllegalArgumentException("Buffer is too small");
+        getChunk(i).put(getPositionInChunk(i), buffer, 0, blockSize);
+    }
+
+    @Override
+    public void readBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        for (int j = 0; j < count; j++)
+            getChunk(addresses[j]).get(getPositionInChunk(addresses[j]), buffer, offset + j * blockSize, blockSize);
+    }
+
+    @Override
+    public void writeBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        for (int j = 0; j < count; j++)
+            getChunk(addresses[j]).put(getPositionInChunk(addresses[j]), buffer, offset + j * blockSize, blockSize);
+    }
+
+    @Override
+    public ByteBuffer getBlockView(int i) {
+        return getChunk(i).slice(getPositionInChunk(i), blockSize);
+    }
+
+    @Override
+    public void saveToFile(String saveFile) throws IOException {
+        try (FileChannel channel = new FileOutputStream(saveFile).getChannel()) {
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer source = chunk.duplicate().clear();
+                while (source.hasRemaining())
+                    channel.write(source);
+            }
+        }
+    }
+
+    @Override
+    public void readFromFile(String saveFile) throws IOException {
+        try (FileChannel channel = new FileInputStream(saveFile).getChannel()) {
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer destination = chunk.duplicate().clear();
+                while (destination.hasRemaining()) {
+                    if (channel.read(destination) < 0)
+                        throw new RuntimeException("Wrong byte count in " + saveFile);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean canReadConcurrently() {
+        return true;
+    }
+}
@@ -1,16 +1,23 @@
 package ua.knu.csc.fs;
 
+import ua.knu.csc.fs.filesystem.AllocationPolicy;
+import ua.knu.csc.fs.filesystem.BasicFileSystem;
+import ua.knu.csc.fs.filesystem.Batch;
+import ua.knu.csc.fs.filesystem.CylinderAllocationPolicy;
 import ua.knu.csc.fs.filesystem.FakeIOException;
 import ua.knu.csc.fs.filesystem.FileSystem;
+import ua.knu.csc.fs.filesystem.LogStructuredFileSystem;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Scanner;
 
 public class PresentationShell {
-    private FileSystem currentFS = null;
+    private BasicFileSystem currentFS = null;
     private IOSystem currentIOSystem = null;
+    private int blocksPerCylinder;
 
     private final PrintStream output;
     private final Scanner input;
@@ -20,31 +27,51 @@ public class PresentationShell {
         this.input = input;
     }
 
+    /**
+     * @param logStructured true to use {@link LogStructuredFileSystem}, false for {@link FileSystem}
+     */
     private void load(
             int cylinderCount,
             int surfaceCount,
             int sectorCount,
             int sectorSize,
-            String saveFileName
+            String saveFileName,
+            boolean logStructured
     ) throws IOException {
         File saveFile = new File(saveFileName);
 
         int blockCount = cylinderCount * surfaceCount * sectorCount;
+        blocksPerCylinder = surfaceCount * sectorCount;
 
-        currentIOSystem = new IOSystem(blockCount, sectorSize);
+        IOSystem ioSystem = new SparseMemoryIOSystem(blockCount, sectorSize);
 
         String message;
         if (saveFile.isFile()) {
-            currentIOSystem.readFromFile(saveFileName);
+            ioSystem.readFromFile(saveFileName);
             message = "disk restored";
         } else {
             message = "disk initialized";
         }
-        currentFS = new FileSystem(currentIOSystem);
+        //The previous disk stays loaded if this one can't be used
+        if (logStructured)
+            currentFS = new LogStructuredFileSystem(ioSystem);
+        else
+            currentFS = new FileSystem(ioSystem);
+        currentIOSystem = ioSystem;
 
         output.println(message);
     }
 
+    /**
+     * @return current file system, null if it is log-structured, which doesn't support the command
+     */
+    private FileSystem getBlockFileSystem() {
+        if (currentFS instanceof FileSystem fileSystem)
+            return fileSystem;
+        output.println("Not supported by the log-structured file system");
+        return null;
+    }
+
     private void create(String fileName) throws FakeIOException {
         currentFS.create(fileName);
         output.println("file " + fileName + " created");
@@ -55,6 +82,34 @@ public class PresentationShell {
         output.println("file " + fileName + " destroyed");
     }
 
+    /**
+     * @param command pairs of "cr" or "de" and a file name, after the command name
+     */
+    private void batch(String[] command) throws FakeIOException {
+        FileSystem fileSystem = getBlockFileSystem();
+        if (fileSystem == null)
+            return;
+        Batch batch = new Batch();
+        for (int i = 1; i < command.length; i += 2) {
+            switch (command[i]) {
+                case "cr" -> batch.create(command[i + 1]);
+                case "de" -> batch.destroy(command[i + 1]);
+                default -> {
+                    output.println("Only cr and de can be batched");
+                    return;
+                }
+            }
+        }
+        for (Batch.Result result : fileSystem.apply(batch)) {
+            if (!result.isSuccess())
+                output.println("error: " + result.error);
+            else if (result.operation.type == Batch.OperationType.CREATE)
+                output.println("file " + result.operation.fileName + " created");
+            else
+                output.println("file " + result.operation.fileName + " destroyed");
+        }
+    }
+
     private void open(String fileName) throws FakeIOException {
         int index = currentFS.openFile(fileName);
         output.println("file " + fileName + " opened, index=" + index);
@@ -100,6 +155,79 @@ public class PresentationShell {
         output.println("disk saved");
     }
 
+    private void importDirectory(String directory) throws IOException {
+        FileSystem fileSystem = getBlockFileSystem();
+        if (fileSystem == null)
+            return;
+        BulkTransfer.Result result = new BulkTransfer(fileSystem, Runtime.getRuntime().availableProcessors())
+                .importDirectory(Path.of(directory));
+        for (String failure : result.failures)
+            output.println("error: " + failure);
+        output.println("imported " + result);
+    }
+
+    private void exportDirectory(String directory) throws IOException {
+        FileSystem fileSystem = getBlockFileSystem();
+        if (fileSystem == null)
+            return;
+        BulkTransfer.Result result = new BulkTransfer(fileSystem, Runtime.getRuntime().availableProcessors())
+                .exportDirectory(Path.of(directory));
+        for (String failure : result.failures)
+            output.println("error: " + failure);
+        output.println("exported " + result);
+    }
+
+    private void setAllocationPolicy(String policyName) {
+        FileSystem fileSystem = getBlockFileSystem();
+        if (fileSystem == null)
+            return;
+        AllocationPolicy policy;
+        switch (policyName) {
+            case "first" -> policy = AllocationPolicy.FIRST_FREE;
+            case "cylinder" -> policy = new CylinderAllocationPolicy(blocksPerCylinder);
+            default -> {
+                output.println("Unknown allocation policy, use first or cylinder");
+                return;
+            }
+        }
+        fileSystem.setAllocationPolicy(policy);
+        output.println("allocation policy is " + policyName);
+    }
+
+    private void deduplication(String[] command) {
+        FileSystem fileSystem = getBlockFileSystem();
+        if (fileSystem == null)
+            return;
+        if (command.length == 2) {
+            switch (command[1]) {
+                case "on" -> fileSystem.setDeduplication(true);
+                case "off" -> fileSystem.setDeduplication(false);
+                default -> {
+                    output.println("Use dd on, dd off, or dd to show stats");
+                    return;
+                }
+            }
+            output.println("deduplication is " + command[1]);
+        } else {
+            output.println(fileSystem.getDeduplicationStats());
+        }
+    }
+
+    private void compression(int fileIndex, String mode) throws FakeIOException {
+        FileSystem fileSystem = getBlockFileSystem();
+        if (fileSystem == null)
+            return;
+        switch (mode) {
+            case "on" -> fileSystem.setCompression(fileIndex, true);
+            case "off" -> fileSystem.setCompression(fileIndex, false);
+            default -> {
+                output.println("Use cm <index> on or cm <index> off");
+                return;
+            }
+        }
+        output.println("compression of file " + fileIndex + " is " + mode);
+    }
+
     private String[] getCommand(Scanner input) {
         return input.nextLine().split("\\s+");
     }
@@ -107,10 +235,12 @@ public class PresentationShell {
     private boolean checkCommandSize(String[] command) {
         return switch (command[0]) {
             case "dr", "ex" -> command.length == 1;
-            case "cr", "de", "op", "cl", "sv" -> command.length == 2;
-            case "rd", "sk" -> command.length == 3;
+            case "cr", "de", "op", "cl", "sv", "im", "xp", "ap" -> command.length == 2;
+            case "rd", "sk", "cm" -> command.length == 3;
             case "wr" -> command.length == 4;
-            case "in" -> command.length == 6;
+            case "in" -> command.length == 6 || (command.length == 7 && command[6].equals("lfs"));
+            case "bt" -> command.length >= 3 && command.length % 2 == 1;
+            case "dd" -> command.length <= 2;
             default -> true;
         };
     }
@@ -132,6 +262,7 @@ public class PresentationShell {
                 switch (command[0]) {
                     case "cr" -> create(command[1]);
                     case "de" -> destroy(command[1]);
+                    case "bt" -> batch(command);
                     case "op" -> open(command[1]);
                     case "cl" -> close(Integer.parseInt(command[1]));
                     case "rd" -> read(Integer.parseInt(command[1]), Integer.parseInt(command[2]));
@@ -153,9 +284,15 @@ public class PresentationShell {
                             Integer.parseInt(command[2]),
                             Integer.parseInt(command[3]),
                             Integer.parseInt(command[4]),
-                            command[5]
+                            command[5],
+                            command.length == 7
                     );
                     case "sv" -> save(command[1]);
+                    case "im" -> importDirectory(command[1]);
+                    case "xp" -> exportDirectory(command[1]);
+                    case "ap" -> setAllocationPolicy(command[1]);
+                    case "dd" -> deduplication(command);
+                    case "cm" -> compression(Integer.parseInt(command[1]), command[2]);
                     default -> output.println("Wrong command");
                 }
             } catch (NumberFormatException e) {
@@ -0,0 +1,102 @@
+package ua.knu.csc.fs;
+
+import ua.knu.csc.fs.filesystem.AllocationPolicy;
+import ua.knu.csc.fs.filesystem.CylinderAllocationPolicy;
+import ua.knu.csc.fs.filesystem.FakeIOException;
+import ua.knu.csc.fs.filesystem.FileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares allocation policies by how far the disk head moves.
+ * A few log files grow a block at a time while temporary files are created and destroyed around them,
+ * and after every change all files are read from start to end.
+ * Seek distance is modelled by {@link SeekTrackingIOSystem}, separately for going from the FD to the first block
+ * and for going through the rest of the file.
+ */
+public final class SeekBenchmark {
+    private static final int CYLINDER_COUNT = 8;
+    private static final int SURFACE_COUNT = 2;
+    private static final int SECTOR_COUNT = 4;
+    private static final int SECTOR_SIZE = 64;
+    private static final int ROUNDS = 500;
+
+    public static void main(String[] args) throws FakeIOException {
+        int blocksPerCylinder = SURFACE_COUNT * SECTOR_COUNT;
+        run("first free", AllocationPolicy.FIRST_FREE, blocksPerCylinder);
+        run("cylinder", new CylinderAllocationPolicy(blocksPerCylinder), blocksPerCylinder);
+    }
+
+    private static void writeBlocks(FileSystem fileSystem, String fileName, int count, byte[] block, Random random)
+            throws FakeIOException {
+        int openFile = fileSystem.openFile(fileName);
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(block);
+            fileSystem.write(openFile, block, block.length);
+        }
+        fileSystem.closeFile(openFile);
+    }
+
+    private static void run(String name, AllocationPolicy policy, int blocksPerCylinder) throws FakeIOException {
+        SeekTrackingIOSystem device = new SeekTrackingIOSystem(
+                new MemoryIOSystem(CYLINDER_COUNT * blocksPerCylinder, SECTOR_SIZE),
+                blocksPerCylinder
+        );
+        FileSystem fileSystem = new FileSystem(device, 4);
+        fileSystem.setAllocationPolicy(policy);
+
+        Random random = new Random(42);
+        byte[] block = new byte[SECTOR_SIZE];
+        long firstDistance = 0;
+        long readSeeks = 0;
+        long readDistance = 0;
+
+        //Log files grow slowly, while temporary files come and go around them
+        String[] logFiles = {"log0", "log1", "log2", "log3"};
+        for (String logFile : logFiles)
+            fileSystem.create(logFile);
+        List<String> tempFiles = new ArrayList<>();
+        int nextTempFile = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            String tempFile = "tmp" + nextTempFile++;
+            fileSystem.create(tempFile);
+            tempFiles.add(tempFile);
+            writeBlocks(fileSystem, tempFile, 1 + random.nextInt(2), block, random);
+
+            String logFile = logFiles[random.nextInt(logFiles.length)];
+            int openFile = fileSystem.openFile(logFile);
+            if (fileSystem.getFileSize(openFile) >= fileSystem.getMaxFileSize())
+                fileSystem.truncate(openFile, 0);
+            fileSystem.seek(openFile, fileSystem.getFileSize(openFile));
+            random.nextBytes(block);
+            fileSystem.write(openFile, block, block.length);
+            fileSystem.closeFile(openFile);
+
+            while (tempFiles.size() > 8)
+                fileSystem.destroy(tempFiles.remove(random.nextInt(tempFiles.size())));
+
+            //Read every file from start to end
+            List<String> files = new ArrayList<>(tempFiles);
+            files.addAll(List.of(logFiles));
+            for (String fileName : files) {
+                openFile = fileSystem.openFile(fileName);
+                device.resetStats();
+                fileSystem.read(openFile, block, block.length);
+                firstDistance += device.getSeekDistance();
+                device.resetStats();
+                while (fileSystem.read(openFile, block, block.length) > 0);
+                readSeeks += device.getSeekCount();
+                readDistance += device.getSeekDistance();
+                fileSystem.closeFile(openFile);
+            }
+        }
+
+        System.out.printf(
+                "%-10s FD to data: %d cylinders, within files: %d seeks, %d cylinders, total %d cylinders%n",
+                name, firstDistance, readSeeks, readDistance, firstDistance + readDistance
+        );
+    }
+}
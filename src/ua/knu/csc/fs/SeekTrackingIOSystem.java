@@ -0,0 +1,80 @@
+package ua.knu.csc.fs;
+
+/**
+ * Wraps another device and models how far the disk head has to move:
+ * every access to a block on a different cylinder than the previous access counts as a seek,
+ * and the seek distance is the difference between cylinder numbers.
+ */
+public final class SeekTrackingIOSystem extends IOSystem {
+    private final IOSystem device;
+    private final int blocksPerCylinder;
+
+    private int headCylinder = 0;
+    private long seekCount;
+    private long seekDistance;
+
+    /**
+     * @param blocksPerCylinder amount of blocks on one cylinder, surface count * sector count
+     */
+    public SeekTrackingIOSystem(IOSystem device, int blocksPerCylinder) {
+        super(device.blockCount, device.blockSize);
+        this.device = device;
+        this.blocksPerCylinder = blocksPerCylinder;
+    }
+
+    private void moveHead(int block) {
+        int cylinder = block / blocksPerCylinder;
+        if (cylinder != headCylinder) {
+            seekCount++;
+            seekDistance += Math.abs(cylinder - headCylinder);
+            headCylinder = cylinder;
+        }
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        moveHead(i);
+        device.readBlock(i, buffer);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        moveHead(i);
+        device.writeBlock(i, buffer);
+    }
+
+    @Override
+    public void readBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        for (int j = 0; j < count; j++)
+            moveHead(addresses[j]);
+        device.readBlocks(addresses, count, buffer, offset);
+    }
+
+    @Override
+    public void writeBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        for (int j = 0; j < count; j++)
+            moveHead(addresses[j]);
+        device.writeBlocks(addresses, count, buffer, offset);
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return device.getMemoryUsage();
+    }
+
+    public long getSeekCount() {
+        return seekCount;
+    }
+
+    /**
+     * @return total distance travelled by the head, in cylinders
+     */
+    public long getSeekDistance() {
+        return seekDistance;
+    }
+
+    public void resetStats() {
+        seekCount = 0;
+        seekDistance = 0;
+    }
+}
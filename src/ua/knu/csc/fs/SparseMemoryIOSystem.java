@@ -0,0 +1,183 @@
+package ua.knu.csc.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * In-memory I/O device which only keeps blocks that have some data in them.
+ * Blocks which were never written, or were last written with zeros, read as zeros and take no memory,
+ * so creating even a big disk is instant, and a fresh disk costs almost nothing.
+ * <p>
+ * Save files have the same format as with {@link MemoryIOSystem}, but blocks of zeros are skipped
+ * instead of written, so the real file system can keep them as holes.
+ */
+public final class SparseMemoryIOSystem extends IOSystem {
+    /**
+     * Blocks are looked up through pages of this many pointers, pages are allocated on first write
+     */
+    private static final int BLOCKS_PER_PAGE = 1024;
+
+    private final byte[][][] pages;
+    private int allocatedBlockCount;
+    private int allocatedPageCount;
+
+    public SparseMemoryIOSystem(int blockCount, int blockSize) {
+        super(blockCount, blockSize);
+        this.pages = new byte[MathUtils.divideCeil(blockCount, BLOCKS_PER_PAGE)][][];
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        readBlock(i, buffer, 0);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        if (buffer.length < blockSize)
+            throw new IllegalArgumentException("Buffer is too small");
+        writeBlock(i, buffer, 0);
+    }
+
+    @Override
+    public void readBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        for (int j = 0; j < count; j++)
+            readBlock(addresses[j], buffer, offset + j * blockSize);
+    }
+
+    @Override
+    public void writeBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        for (int j = 0; j < count; j++)
+            writeBlock(addresses[j], buffer, offset + j * blockSize);
+    }
+
+    private void readBlock(int i, byte[] buffer, int offset) {
+        checkIndex(i);
+        byte[][] page = pages[i / BLOCKS_PER_PAGE];
+        byte[] block = page == null ? null : page[i % BLOCKS_PER_PAGE];
+        if (block == null)
+            Arrays.fill(buffer, offset, offset + blockSize, (byte) 0);
+        else
+            System.arraycopy(block, 0, buffer, offset, blockSize);
+    }
+
+    private void writeBlock(int i, byte[] buffer, int offset) {
+        checkIndex(i);
+        byte[][] page = pages[i / BLOCKS_PER_PAGE];
+        if (isZero(buffer, offset, blockSize)) {
+            //Zeros are what an untouched block reads as, so the block is not needed anymore
+            if (page != null && page[i % BLOCKS_PER_PAGE] != null) {
+                page[i % BLOCKS_PER_PAGE] = null;
+                allocatedBlockCount--;
+            }
+            return;
+        }
+
+        System.arraycopy(buffer, offset, getOrAllocateBlock(i), 0, blockSize);
+    }
+
+    private byte[] getOrAllocateBlock(int i) {
+        byte[][] page = pages[i / BLOCKS_PER_PAGE];
+        if (page == null) {
+            page = new byte[BLOCKS_PER_PAGE][];
+            pages[i / BLOCKS_PER_PAGE] = page;
+            allocatedPageCount++;
+        }
+        byte[] block = page[i % BLOCKS_PER_PAGE];
+        if (block == null) {
+            block = new byte[blockSize];
+            page[i % BLOCKS_PER_PAGE] = block;
+            allocatedBlockCount++;
+        }
+        return block;
+    }
+
+    /**
+     * The block takes memory from now on, even if it is all zeros.
+     * Writing zeros into it with {@link #writeBlock(int, byte[])} frees it, and the view is detached from the device.
+     */
+    @Override
+    public ByteBuffer getBlockView(int i) {
+        checkIndex(i);
+        return ByteBuffer.wrap(getOrAllocateBlock(i));
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= blockCount)
+            throw new IndexOutOfBoundsException("Block " + i + " is out of bounds, block count is " + blockCount);
+    }
+
+    private static boolean isZero(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffer[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return amount of blocks which take up memory, the rest read as zeros
+     */
+    public int getAllocatedBlockCount() {
+        return allocatedBlockCount;
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return (long) allocatedBlockCount * blockSize
+                + (long) (pages.length + allocatedPageCount * BLOCKS_PER_PAGE) * Long.BYTES;
+    }
+
+    @Override
+    public void saveToFile(String saveFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                Path.of(saveFile),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            for (int i = 0; i < pages.length; i++) {
+                if (pages[i] == null)
+                    continue;
+                for (int j = 0; j < BLOCKS_PER_PAGE; j++) {
+                    byte[] block = pages[i][j];
+                    if (block == null)
+                        continue;
+                    ByteBuffer source = ByteBuffer.wrap(block);
+                    long position = ((long) i * BLOCKS_PER_PAGE + j) * blockSize;
+                    while (source.hasRemaining())
+                        channel.write(source, position + source.position());
+                }
+            }
+            long size = (long) blockCount * blockSize;
+            if (channel.size() < size) {
+                //Writing the last byte extends the file, the rest reads as zeros
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+    }
+
+    @Override
+    public void readFromFile(String saveFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(saveFile), StandardOpenOption.READ)) {
+            //Blocks of zeros are not loaded into memory
+            ByteBuffer sector = ByteBuffer.allocate(blockSize);
+            for (int i = 0; i < blockCount; i++) {
+                sector.clear();
+                while (sector.hasRemaining()) {
+                    if (channel.read(sector) < 0)
+                        throw new RuntimeException("Wrong byte count in " + saveFile);
+                }
+                writeBlock(i, sector.array(), 0);
+            }
+        }
+    }
+
+    @Override
+    public boolean canReadConcurrently() {
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package ua.knu.csc.fs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RAID-0 style device: logical blocks are spread across member devices in stripe units,
+ * stripe unit i is stored on member i % n.
+ */
+public final class StripedIOSystem extends CompositeIOSystem {
+    /**
+     * Amount of consecutive logical blocks stored on the same member
+     */
+    public final int stripeUnit;
+
+    public StripedIOSystem(IOSystem[] members, int stripeUnit) {
+        super(members, getBlockCount(members, stripeUnit));
+        this.stripeUnit = stripeUnit;
+    }
+
+    private static int getBlockCount(IOSystem[] members, int stripeUnit) {
+        if (stripeUnit <= 0)
+            throw new IllegalArgumentException("Stripe unit should be positive");
+
+        int minBlockCount = Integer.MAX_VALUE;
+        for (IOSystem member : members)
+            minBlockCount = Math.min(minBlockCount, member.blockCount);
+        // Only use full stripe units
+        return minBlockCount / stripeUnit * stripeUnit * members.length;
+    }
+
+    private int getMember(int i) {
+        return i / stripeUnit % members.length;
+    }
+
+    private int getMemberAddress(int i) {
+        return i / stripeUnit / members.length * stripeUnit + i % stripeUnit;
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        members[getMember(i)].readBlock(getMemberAddress(i), buffer);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        members[getMember(i)].writeBlock(getMemberAddress(i), buffer);
+    }
+
+    @Override
+    public void readBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        List<Runnable> tasks = new ArrayList<>(members.length);
+        for (int member = 0; member < members.length; member++) {
+            int[] positions = getPositionsOnMember(addresses, count, member);
+            if (positions.length == 0)
+                continue;
+
+            IOSystem device = members[member];
+            tasks.add(() -> {
+                byte[] memberBuffer = new byte[positions.length * blockSize];
+                device.readBlocks(getMemberAddresses(addresses, positions), positions.length, memberBuffer, 0);
+                for (int j = 0; j < positions.length; j++)
+                    System.arraycopy(memberBuffer, j * blockSize, buffer, offset + positions[j] * blockSize, blockSize);
+            });
+        }
+        runInParallel(tasks);
+    }
+
+    @Override
+    public void writeBlocks(int[] addresses, int count, byte[] buffer, int offset) {
+        List<Runnable> tasks = new ArrayList<>(members.length);
+        for (int member = 0; member < members.length; member++) {
+            int[] positions = getPositionsOnMember(addresses, count, member);
+            if (positions.length == 0)
+                continue;
+
+            IOSystem device = members[member];
+            tasks.add(() -> {
+                byte[] memberBuffer = new byte[positions.length * blockSize];
+                for (int j = 0; j < positions.length; j++)
+                    System.arraycopy(buffer, offset + positions[j] * blockSize, memberBuffer, j * blockSize, blockSize);
+                device.writeBlocks(getMemberAddresses(addresses, positions), positions.length, memberBuffer, 0);
+            });
+        }
+        runInParallel(tasks);
+    }
+
+    /**
+     * @return positions in the addresses array which point to the given member
+     */
+    private int[] getPositionsOnMember(int[] addresses, int count, int member) {
+        int[] positions = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (getMember(addresses[i]) == member)
+                positions[found++] = i;
+        }
+        return Arrays.copyOf(positions, found);
+    }
+
+    private int[] getMemberAddresses(int[] addresses, int[] positions) {
+        int[] memberAddresses = new int[positions.length];
+        for (int j = 0; j < positions.length; j++)
+            memberAddresses[j] = getMemberAddress(addresses[positions[j]]);
+        return memberAddresses;
+    }
+}
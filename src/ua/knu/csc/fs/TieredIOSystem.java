@@ -0,0 +1,227 @@
+package ua.knu.csc.fs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Device with two tiers: a small fast hot tier, e.g. {@link MemoryIOSystem}, and a big cold tier
+ * which holds every block, e.g. {@link FileIOSystem}. Each block of the hot tier caches one block
+ * of the cold tier, so memory use follows the size of the hot set rather than the size of the device.
+ * <p>
+ * Heat of every block is counted from reads and writes, and halved every {@link #blockCount} accesses,
+ * so it reflects recent traffic. A cold block is promoted once it gets hotter than the coldest hot block,
+ * which is demoted in its place. Writes to hot blocks reach the cold tier only on demotion or {@link #flush()}.
+ */
+public final class TieredIOSystem extends IOSystem {
+    /**
+     * A block has to be accessed at least this many times recently before it is promoted,
+     * so that one pass over the whole device does not push out the hot set
+     */
+    private static final int MIN_PROMOTION_HEAT = 2;
+    private static final int NOT_HOT = -1;
+
+    private final IOSystem hotTier;
+    private final IOSystem coldTier;
+
+    private final int[] heat;
+    private int accessesSinceDecay;
+
+    /**
+     * Hot tier block where each block is cached, {@link #NOT_HOT} if the block is only in the cold tier
+     */
+    private final int[] hotSlots;
+    /**
+     * Block cached in each hot tier block, {@link #NOT_HOT} if the hot tier block is free
+     */
+    private final int[] hotBlocks;
+    private final boolean[] dirtySlots;
+    private int hotBlockCount;
+
+    private long hotAccessCount;
+    private long coldAccessCount;
+    private long promotionCount;
+
+    /**
+     * @param hotTier device to cache hot blocks in, its block count is the size of the hot tier
+     * @param coldTier device which holds every block
+     */
+    public TieredIOSystem(IOSystem hotTier, IOSystem coldTier) {
+        super(coldTier.blockCount, coldTier.blockSize);
+        if (hotTier.blockSize != coldTier.blockSize)
+            throw new IllegalArgumentException("Both tiers must have the same block size");
+
+        this.hotTier = hotTier;
+        this.coldTier = coldTier;
+        this.heat = new int[blockCount];
+        this.hotSlots = new int[blockCount];
+        this.hotBlocks = new int[hotTier.blockCount];
+        this.dirtySlots = new boolean[hotTier.blockCount];
+        Arrays.fill(hotSlots, NOT_HOT);
+        Arrays.fill(hotBlocks, NOT_HOT);
+    }
+
+    private void heatUp(int i) {
+        heat[i]++;
+        accessesSinceDecay++;
+        if (accessesSinceDecay >= blockCount) {
+            for (int j = 0; j < blockCount; j++)
+                heat[j] /= 2;
+            accessesSinceDecay = 0;
+        }
+    }
+
+    /**
+     * @return hot tier block for a cold block which deserves to be promoted, {@link #NOT_HOT} if it stays cold
+     */
+    private int findSlotForPromotion(int i) {
+        if (heat[i] < MIN_PROMOTION_HEAT || hotBlocks.length == 0)
+            return NOT_HOT;
+        if (hotBlockCount < hotBlocks.length) {
+            for (int slot = 0; slot < hotBlocks.length; slot++) {
+                if (hotBlocks[slot] == NOT_HOT)
+                    return slot;
+            }
+        }
+
+        int coldestSlot = 0;
+        for (int slot = 1; slot < hotBlocks.length; slot++) {
+            if (heat[hotBlocks[slot]] < heat[hotBlocks[coldestSlot]])
+                coldestSlot = slot;
+        }
+        if (heat[hotBlocks[coldestSlot]] >= heat[i])
+            return NOT_HOT;
+        demote(coldestSlot);
+        return coldestSlot;
+    }
+
+    private void demote(int slot) {
+        int block = hotBlocks[slot];
+        if (dirtySlots[slot]) {
+            byte[] data = new byte[blockSize];
+            hotTier.readBlock(slot, data);
+            coldTier.writeBlock(block, data);
+            dirtySlots[slot] = false;
+        }
+        hotSlots[block] = NOT_HOT;
+        hotBlocks[slot] = NOT_HOT;
+        hotBlockCount--;
+    }
+
+    private void promote(int i, int slot, byte[] data, boolean dirty) {
+        hotTier.writeBlock(slot, data);
+        hotSlots[i] = slot;
+        hotBlocks[slot] = i;
+        dirtySlots[slot] = dirty;
+        hotBlockCount++;
+        promotionCount++;
+    }
+
+    @Override
+    public void readBlock(int i, byte[] buffer) {
+        heatUp(i);
+        if (hotSlots[i] != NOT_HOT) {
+            hotAccessCount++;
+            hotTier.readBlock(hotSlots[i], buffer);
+            return;
+        }
+
+        coldAccessCount++;
+        coldTier.readBlock(i, buffer);
+        int slot = findSlotForPromotion(i);
+        if (slot != NOT_HOT)
+            promote(i, slot, buffer, false);
+    }
+
+    @Override
+    public void writeBlock(int i, byte[] buffer) {
+        if (buffer.length < blockSize)
+            throw new IllegalArgumentException("Buffer is too small");
+        heatUp(i);
+        if (hotSlots[i] != NOT_HOT) {
+            hotAccessCount++;
+            hotTier.writeBlock(hotSlots[i], buffer);
+            dirtySlots[hotSlots[i]] = true;
+            return;
+        }
+
+        int slot = findSlotForPromotion(i);
+        if (slot != NOT_HOT) {
+            //The cold copy is out of date until the block is demoted
+            hotAccessCount++;
+            promote(i, slot, buffer, true);
+        } else {
+            coldAccessCount++;
+            coldTier.writeBlock(i, buffer);
+        }
+    }
+
+    /**
+     * Write modified hot blocks to the cold tier, blocks stay in the hot tier
+     */
+    public void flush() {
+        byte[] data = new byte[blockSize];
+        for (int slot = 0; slot < hotBlocks.length; slot++) {
+            if (!dirtySlots[slot])
+                continue;
+            hotTier.readBlock(slot, data);
+            coldTier.writeBlock(hotBlocks[slot], data);
+            dirtySlots[slot] = false;
+        }
+    }
+
+    /**
+     * @return amount of blocks currently in the hot tier
+     */
+    public int getHotBlockCount() {
+        return hotBlockCount;
+    }
+
+    /**
+     * @return amount of block accesses served by the hot tier
+     */
+    public long getHotAccessCount() {
+        return hotAccessCount;
+    }
+
+    /**
+     * @return amount of block accesses served by the cold tier
+     */
+    public long getColdAccessCount() {
+        return coldAccessCount;
+    }
+
+    public long getPromotionCount() {
+        return promotionCount;
+    }
+
+    /**
+     * Hot tier, cold tier and heat counters
+     */
+    @Override
+    public long getMemoryUsage() {
+        return hotTier.getMemoryUsage() + coldTier.getMemoryUsage()
+                + (long) blockCount * Integer.BYTES * 2 + (long) hotBlocks.length * (Integer.BYTES + 1);
+    }
+
+    /**
+     * Saving does not count as traffic, so it does not change which blocks are hot
+     */
+    @Override
+    public void saveToFile(String saveFile) throws IOException {
+        flush();
+        coldTier.saveToFile(saveFile);
+    }
+
+    /**
+     * Every block is replaced, so the hot tier starts out empty
+     */
+    @Override
+    public void readFromFile(String saveFile) throws IOException {
+        coldTier.readFromFile(saveFile);
+        Arrays.fill(hotSlots, NOT_HOT);
+        Arrays.fill(hotBlocks, NOT_HOT);
+        Arrays.fill(dirtySlots, false);
+        Arrays.fill(heat, 0);
+        hotBlockCount = 0;
+    }
+}
@@ -0,0 +1,244 @@
+package ua.knu.csc.fs;
+
+import ua.knu.csc.fs.filesystem.FileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hosts many volumes, each volume is stored in its own save file in the storage directory.
+ * Volumes are mounted on first access, and unmounted (synced and saved) when they are idle
+ * and the mounted volumes take up more memory than allowed.
+ * <p>
+ * Volumes are used through {@link #withVolume(String, VolumeOperation)}, which keeps the volume mounted
+ * while the operation runs. The {@link FileSystem} should not be kept around after that:
+ * once all files of a volume are closed, the volume may be evicted and mounted again later as a new instance.
+ */
+public final class VolumeManager {
+    /**
+     * Something to do with a mounted volume, see {@link #withVolume(String, VolumeOperation)}
+     */
+    public interface VolumeOperation<T> {
+        T apply(FileSystem fileSystem) throws IOException;
+    }
+
+    private static final class Volume {
+        final IOSystem ioSystem;
+        final FileSystem fileSystem;
+        /**
+         * Held while the volume is used or saved, operations on one volume run one at a time
+         */
+        final Lock lock = new ReentrantLock();
+        /**
+         * Amount of operations which use the volume right now, pinned volumes are never evicted
+         */
+        int pinCount;
+        /**
+         * Memory usage as of the last access, devices only allocate blocks once they are written
+         */
+        long memoryUsage;
+        long lastAccessTime;
+
+        Volume(IOSystem ioSystem, FileSystem fileSystem) {
+            this.ioSystem = ioSystem;
+            this.fileSystem = fileSystem;
+            this.memoryUsage = getCurrentMemoryUsage();
+        }
+
+        long getCurrentMemoryUsage() {
+            return ioSystem.getMemoryUsage() + fileSystem.getMemoryUsage();
+        }
+    }
+
+    private final File storageDirectory;
+    private final int blockSize;
+    private final int newVolumeBlockCount;
+    private final long memoryBudget;
+
+    /**
+     * Mounted volumes, in least recently used order
+     */
+    private final LinkedHashMap<String, Volume> volumes = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsage;
+
+    /**
+     * @param storageDirectory directory with volume save files
+     * @param blockSize block size of every volume
+     * @param newVolumeBlockCount amount of blocks in a volume which did not exist before
+     * @param memoryBudget how much memory mounted volumes may use, in bytes
+     */
+    public VolumeManager(File storageDirectory, int blockSize, int newVolumeBlockCount, long memoryBudget) {
+        if (!storageDirectory.isDirectory())
+            throw new IllegalArgumentException("Not a directory: " + storageDirectory);
+
+        this.storageDirectory = storageDirectory;
+        this.blockSize = blockSize;
+        this.newVolumeBlockCount = newVolumeBlockCount;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Run an operation on a volume, mounting it if necessary. A volume which does not exist yet gets created.
+     * The volume can't be evicted or saved while the operation runs, and other operations on it wait.
+     *
+     * @param id volume ID, may only contain letters, digits, '-' and '_'
+     * @return whatever the operation returned
+     */
+    public <T> T withVolume(String id, VolumeOperation<T> operation) throws IOException {
+        Volume volume = acquire(id);
+        try {
+            volume.lock.lock();
+            try {
+                return operation.apply(volume.fileSystem);
+            } finally {
+                volume.lock.unlock();
+            }
+        } finally {
+            release(volume);
+        }
+    }
+
+    /**
+     * Pin a volume, mounting it if necessary
+     */
+    private synchronized Volume acquire(String id) throws IOException {
+        Volume volume = volumes.get(id);
+        if (volume == null) {
+            volume = mount(id);
+            volumes.put(id, volume);
+            memoryUsage += volume.memoryUsage;
+        }
+        volume.pinCount++;
+        volume.lastAccessTime = System.nanoTime();
+        return volume;
+    }
+
+    /**
+     * Unpin a volume. It may have grown while it was used, so the memory budget is checked again
+     */
+    private synchronized void release(Volume volume) throws IOException {
+        volume.pinCount--;
+        long currentUsage = volume.getCurrentMemoryUsage();
+        memoryUsage += currentUsage - volume.memoryUsage;
+        volume.memoryUsage = currentUsage;
+        evictOverBudget();
+    }
+
+    private Volume mount(String id) throws IOException {
+        if (!id.matches("[A-Za-z0-9_-]+"))
+            throw new IllegalArgumentException("Invalid volume ID: " + id);
+
+        File saveFile = getSaveFile(id);
+        IOSystem ioSystem;
+        if (saveFile.isFile()) {
+            ioSystem = new SparseMemoryIOSystem((int) (saveFile.length() / blockSize), blockSize);
+            ioSystem.readFromFile(saveFile.getPath());
+        } else {
+            ioSystem = new SparseMemoryIOSystem(newVolumeBlockCount, blockSize);
+        }
+        return new Volume(ioSystem, new FileSystem(ioSystem));
+    }
+
+    /**
+     * Unmount least recently used volumes which are not in use and have no open files,
+     * until mounted volumes fit into the memory budget.
+     * The most recently used volume is never evicted.
+     */
+    private void evictOverBudget() throws IOException {
+        Iterator<Map.Entry<String, Volume>> iterator = volumes.entrySet().iterator();
+        int remaining = volumes.size();
+
+        while (memoryUsage > memoryBudget && remaining > 1) {
+            Map.Entry<String, Volume> entry = iterator.next();
+            remaining--;
+            Volume volume = entry.getValue();
+            if (!canEvict(volume))
+                continue;
+
+            //A volume which failed to save stays mounted, nothing is lost
+            save(entry.getKey(), volume);
+            memoryUsage -= volume.memoryUsage;
+            iterator.remove();
+        }
+    }
+
+    private static boolean canEvict(Volume volume) {
+        return volume.pinCount == 0 && !volume.fileSystem.hasOpenFiles();
+    }
+
+    /**
+     * Unmount every volume which has no open files and was not accessed for a while.
+     * @param idleMillis how long a volume has to be idle to get unmounted
+     */
+    public synchronized void evictIdle(long idleMillis) throws IOException {
+        // Unlike with the memory budget, the last used volume can be idle too
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Volume>> iterator = volumes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Volume> entry = iterator.next();
+            Volume volume = entry.getValue();
+            if (!canEvict(volume) || now - volume.lastAccessTime < idleMillis * 1_000_000)
+                continue;
+
+            save(entry.getKey(), volume);
+            memoryUsage -= volume.memoryUsage;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Sync and save every mounted volume, without unmounting.
+     * Volumes which are in use get saved once their current operation is done.
+     */
+    public void saveAll() throws IOException {
+        List<Map.Entry<String, Volume>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(volumes.entrySet());
+            for (Map.Entry<String, Volume> entry : entries)
+                entry.getValue().pinCount++;
+        }
+
+        //The manager is not locked while waiting for operations, so they can use other volumes meanwhile
+        try {
+            for (Map.Entry<String, Volume> entry : entries)
+                save(entry.getKey(), entry.getValue());
+        } finally {
+            synchronized (this) {
+                for (Map.Entry<String, Volume> entry : entries)
+                    entry.getValue().pinCount--;
+            }
+        }
+    }
+
+    private void save(String id, Volume volume) throws IOException {
+        volume.lock.lock();
+        try {
+            volume.fileSystem.sync();
+            volume.ioSystem.saveToFile(getSaveFile(id).getPath());
+        } finally {
+            volume.lock.unlock();
+        }
+    }
+
+    private File getSaveFile(String id) {
+        return new File(storageDirectory, id + ".disk");
+    }
+
+    public synchronized int getMountedCount() {
+        return volumes.size();
+    }
+
+    /**
+     * @return approximate amount of memory used by mounted volumes, in bytes
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+}
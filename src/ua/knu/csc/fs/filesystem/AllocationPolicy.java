@@ -0,0 +1,41 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which free block a file gets, see {@link FileSystem#setAllocationPolicy(AllocationPolicy)}
+ */
+public interface AllocationPolicy {
+    /**
+     * @param isFree tells if the block at an address is free
+     * @param firstBlock address of the first block of the data area
+     * @param endBlock address right after the last block of the data area
+     * @param goal address where the new block would be best:
+     *             right after the previous block of the file, or the block with its FD for the first block
+     * @return address of a free block, -1 if there are none
+     */
+    int chooseBlock(IntPredicate isFree, int firstBlock, int endBlock, int goal);
+
+    /**
+     * The first block of a file is aimed at its FD, so this also decides where data of the files in the group goes
+     *
+     * @param group index of a group of FDs which needs a block
+     * @param firstBlock address of the first block of the data area
+     * @param endBlock address right after the last block of the data area
+     * @return address where the block for the group would be best, the start of the data area by default
+     */
+    default int getFdBlockGoal(int group, int firstBlock, int endBlock) {
+        return firstBlock;
+    }
+
+    /**
+     * Lowest free block, the goal is ignored
+     */
+    AllocationPolicy FIRST_FREE = (isFree, firstBlock, endBlock, goal) -> {
+        for (int block = firstBlock; block < endBlock; block++) {
+            if (isFree.test(block))
+                return block;
+        }
+        return -1;
+    };
+}
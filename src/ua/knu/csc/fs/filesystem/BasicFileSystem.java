@@ -0,0 +1,134 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.List;
+
+/**
+ * Basic file operations which {@link FileSystem} and {@link LogStructuredFileSystem} both have,
+ * so that either of them can be used by the shell.
+ */
+public interface BasicFileSystem {
+    /**
+     * Create new file in the file system
+     * @param fileName name of created file
+     */
+    void create(String fileName) throws FakeIOException;
+
+    /**
+     * Destroy a file in the file system
+     * @param fileName name of the file
+     */
+    void destroy(String fileName) throws FakeIOException;
+
+    /**
+     * Open an existing file for read/write operations.
+     * @param fileName name of the file in file system
+     * @return index of opened file
+     */
+    int openFile(String fileName) throws FakeIOException;
+
+    /**
+     * Closes opened file.
+     * @param openFile index of open file, obtainable via {@link #openFile(String)}
+     */
+    void closeFile(int openFile) throws FakeIOException;
+
+    /**
+     * Read contents of file into buffer
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to read into
+     * @param count how many bytes to read
+     * @return amount of bytes read, {@link FileSystem#END_OF_FILE} if reached end of file
+     */
+    int read(int openFile, byte[] buffer, int count) throws FakeIOException;
+
+    /**
+     * Read contents of file into part of buffer
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to read into
+     * @param offset position in buffer where the data goes
+     * @param count how many bytes to read
+     * @return amount of bytes read, {@link FileSystem#END_OF_FILE} if reached end of file
+     */
+    int read(int openFile, byte[] buffer, int offset, int count) throws FakeIOException;
+
+    /**
+     * Write contents of buffer into file
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to write from
+     * @param count how many bytes to write
+     * @return amount of bytes written
+     */
+    int write(int openFile, byte[] buffer, int count) throws FakeIOException;
+
+    /**
+     * Write part of buffer into file
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to write from
+     * @param offset position in buffer where the data starts
+     * @param count how many bytes to write
+     * @return amount of bytes written
+     */
+    int write(int openFile, byte[] buffer, int offset, int count) throws FakeIOException;
+
+    /**
+     * Move current read/write position in open file
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @param position new read/write position
+     */
+    void seek(int openFile, int position) throws FakeIOException;
+
+    /**
+     * Write cached data of every open file to the device.
+     * This should be called before saving the emulated I/O system into real storage
+     */
+    void sync() throws FakeIOException;
+
+    /**
+     * @return names of all files in the root directory, in sorted order
+     */
+    List<String> getFileNames();
+
+    /**
+     * Builds a string with file names and their size
+     * @return string with main info about files
+     */
+    String listFiles();
+
+    /**
+     * @return true if any file other than the root directory is open
+     */
+    boolean hasOpenFiles();
+
+    /**
+     * @return approximate amount of memory used by the file system, in bytes
+     */
+    long getMemoryUsage();
+
+    /**
+     * @return true if a file with this name exists in the root directory
+     */
+    boolean exists(String fileName);
+
+    /**
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @return current size of the file
+     */
+    int getFileSize(int openFile) throws FakeIOException;
+
+    /**
+     * @param fileName name of the file, it does not have to be open
+     * @return current size of the file
+     */
+    int getFileSize(String fileName) throws FakeIOException;
+
+    /**
+     * @return max size of a single file in bytes
+     */
+    int getMaxFileSize();
+
+    String getFileName(int openFile) throws FakeIOException;
+}
@@ -0,0 +1,69 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * List of operations to apply with {@link FileSystem#apply(Batch)}.
+ * Metadata of the whole batch is written to disk once, after the last operation.
+ */
+public final class Batch {
+    public enum OperationType {
+        CREATE,
+        DESTROY
+    }
+
+    public static final class Operation {
+        public final OperationType type;
+        public final String fileName;
+
+        Operation(OperationType type, String fileName) {
+            this.type = type;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + fileName;
+        }
+    }
+
+    public static final class Result {
+        public final Operation operation;
+        /**
+         * Reason why the operation failed, null if it succeeded
+         */
+        public final String error;
+
+        Result(Operation operation, String error) {
+            this.operation = operation;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return operation + (error == null ? ": ok" : ": " + error);
+        }
+    }
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    public Batch create(String fileName) {
+        operations.add(new Operation(OperationType.CREATE, fileName));
+        return this;
+    }
+
+    public Batch destroy(String fileName) {
+        operations.add(new Operation(OperationType.DESTROY, fileName));
+        return this;
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+}
@@ -0,0 +1,55 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decompressed data of recently used compressed files, so that reading a compressed file
+ * does not decompress it again for every block. Cached data is always the same as the data on disk.
+ * Methods are synchronized, so that positional reads from several threads can share the cache.
+ */
+final class ClusterCache {
+    private final int capacity;
+    /**
+     * Decompressed data by FD index, least recently used first
+     */
+    private final LinkedHashMap<Integer, byte[]> clusters;
+
+    /**
+     * @param capacity max amount of files to keep
+     */
+    ClusterCache(int capacity) {
+        this.capacity = capacity;
+        this.clusters = new LinkedHashMap<>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > ClusterCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return decompressed data of a file, should not be modified; null if it is not cached
+     */
+    synchronized byte[] get(int fdIndex) {
+        return clusters.get(fdIndex);
+    }
+
+    /**
+     * @param cluster decompressed data of a file, the cache keeps this instance
+     */
+    synchronized void put(int fdIndex, byte[] cluster) {
+        clusters.put(fdIndex, cluster);
+    }
+
+    synchronized void remove(int fdIndex) {
+        clusters.remove(fdIndex);
+    }
+
+    synchronized long getMemoryUsage() {
+        long usage = 0;
+        for (byte[] cluster : clusters.values())
+            usage += cluster.length + Integer.BYTES;
+        return usage;
+    }
+}
@@ -0,0 +1,77 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Picks a free block on the same cylinder as the goal, or on the nearest cylinder that has one,
+ * so that reading a file moves the disk head as little as possible.
+ * Within a cylinder the block closest to the goal wins.
+ * The goal for the first block of a file is the block with its FD, so the data starts on the cylinder of the FD,
+ * and blocks with FDs are spread over the cylinders.
+ */
+public final class CylinderAllocationPolicy implements AllocationPolicy {
+    private final int blocksPerCylinder;
+
+    /**
+     * @param blocksPerCylinder amount of blocks on one cylinder, surface count * sector count
+     */
+    public CylinderAllocationPolicy(int blocksPerCylinder) {
+        if (blocksPerCylinder <= 0)
+            throw new IllegalArgumentException("Cylinder should have at least one block");
+        this.blocksPerCylinder = blocksPerCylinder;
+    }
+
+    /**
+     * Groups of FDs go to different cylinders, so that files of different groups don't crowd the same cylinders
+     */
+    @Override
+    public int getFdBlockGoal(int group, int firstBlock, int endBlock) {
+        int firstCylinder = firstBlock / blocksPerCylinder;
+        int cylinderCount = (endBlock - 1) / blocksPerCylinder - firstCylinder + 1;
+        int cylinder = firstCylinder + group % cylinderCount;
+        return Math.max(firstBlock, cylinder * blocksPerCylinder);
+    }
+
+    @Override
+    public int chooseBlock(IntPredicate isFree, int firstBlock, int endBlock, int goal) {
+        return findNearest(isFree, firstBlock, endBlock, goal);
+    }
+
+    /**
+     * @return block on the nearest cylinder to the goal which passes the check, -1 if there are none
+     */
+    private int findNearest(IntPredicate isFree, int firstBlock, int endBlock, int goal) {
+        goal = Math.max(firstBlock, Math.min(goal, endBlock - 1));
+        int goalCylinder = goal / blocksPerCylinder;
+        int firstCylinder = firstBlock / blocksPerCylinder;
+        int lastCylinder = (endBlock - 1) / blocksPerCylinder;
+
+        for (int distance = 0; goalCylinder - distance >= firstCylinder || goalCylinder + distance <= lastCylinder; distance++) {
+            int best = -1;
+            if (goalCylinder - distance >= firstCylinder)
+                best = findClosest(isFree, goalCylinder - distance, firstBlock, endBlock, goal);
+            if (distance > 0 && goalCylinder + distance <= lastCylinder) {
+                int other = findClosest(isFree, goalCylinder + distance, firstBlock, endBlock, goal);
+                if (best < 0 || (other >= 0 && Math.abs(other - goal) < Math.abs(best - goal)))
+                    best = other;
+            }
+            if (best >= 0)
+                return best;
+        }
+        return -1;
+    }
+
+    /**
+     * @return free block of the cylinder closest to the goal, -1 if the cylinder is full
+     */
+    private int findClosest(IntPredicate isFree, int cylinder, int firstBlock, int endBlock, int goal) {
+        int from = Math.max(firstBlock, cylinder * blocksPerCylinder);
+        int to = Math.min(endBlock, (cylinder + 1) * blocksPerCylinder);
+        int best = -1;
+        for (int block = from; block < to; block++) {
+            if (isFree.test(block) && (best < 0 || Math.abs(block - goal) < Math.abs(best - goal)))
+                best = block;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,92 @@
+package ua.knu.csc.fs.filesystem;
+
+import ua.knu.csc.fs.IOSystem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * In-memory index of data block contents, used to find a block which already has the data that is about to be written.
+ * Only one block is indexed for each content hash, matches are compared byte by byte before they are used.
+ */
+final class DeduplicationIndex {
+    /**
+     * Rough size of one entry in a HashMap with boxed keys and values, in bytes
+     */
+    private static final int ENTRY_BYTES = 64;
+
+    private final IOSystem ioSystem;
+    private final HashMap<Long, Integer> blocksByHash = new HashMap<>();
+    private final HashMap<Integer, Long> hashesByBlock = new HashMap<>();
+
+    DeduplicationIndex(IOSystem ioSystem) {
+        this.ioSystem = ioSystem;
+    }
+
+    /**
+     * @return independent copy of the index, e.g. to go back to if a batch is undone
+     */
+    DeduplicationIndex copy() {
+        DeduplicationIndex copy = new DeduplicationIndex(ioSystem);
+        copy.blocksByHash.putAll(blocksByHash);
+        copy.hashesByBlock.putAll(hashesByBlock);
+        return copy;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of one block of data
+     */
+    private long hash(byte[] data, int offset) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + ioSystem.blockSize; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return pointer to an indexed block with exactly the same data, -1 if there is none
+     */
+    int find(byte[] data, int offset) {
+        Integer block = blocksByHash.get(hash(data, offset));
+        if (block == null)
+            return -1;
+
+        byte[] blockData = new byte[ioSystem.blockSize];
+        ioSystem.readBlock(block, blockData);
+        if (!Arrays.equals(blockData, 0, ioSystem.blockSize, data, offset, offset + ioSystem.blockSize))
+            return -1;
+        return block;
+    }
+
+    /**
+     * Remember the data which was just written into a block
+     */
+    void add(int block, byte[] data, int offset) {
+        long hash = hash(data, offset);
+        hashesByBlock.put(block, hash);
+        blocksByHash.putIfAbsent(hash, block);
+    }
+
+    /**
+     * Forget the data of a block, because it is about to be overwritten or freed
+     */
+    void remove(int block) {
+        Long hash = hashesByBlock.remove(block);
+        //Another block with the same hash may be the one which is indexed
+        if (hash != null)
+            blocksByHash.remove(hash, block);
+    }
+
+    /**
+     * @return approximate amount of memory used by the index, in bytes
+     */
+    long getMemoryUsage() {
+        return (long) (blocksByHash.size() + hashesByBlock.size()) * ENTRY_BYTES;
+    }
+
+    int size() {
+        return hashesByBlock.size();
+    }
+}
@@ -0,0 +1,55 @@
+package ua.knu.csc.fs.filesystem;
+
+/**
+ * Snapshot of how much space is saved by sharing blocks, see {@link FileSystem#getDeduplicationStats()}
+ */
+public final class DeduplicationStats {
+    /**
+     * Data blocks referenced by files, a shared block is counted once for each file
+     */
+    public final int logicalBlockCount;
+    /**
+     * Data blocks actually allocated
+     */
+    public final int physicalBlockCount;
+    public final int sharedBlockCount;
+    public final int indexEntryCount;
+    /**
+     * Approximate memory used by the hash index, in bytes
+     */
+    public final long indexMemoryUsage;
+
+    DeduplicationStats(
+            int logicalBlockCount,
+            int physicalBlockCount,
+            int sharedBlockCount,
+            int indexEntryCount,
+            long indexMemoryUsage
+    ) {
+        this.logicalBlockCount = logicalBlockCount;
+        this.physicalBlockCount = physicalBlockCount;
+        this.sharedBlockCount = sharedBlockCount;
+        this.indexEntryCount = indexEntryCount;
+        this.indexMemoryUsage = indexMemoryUsage;
+    }
+
+    /**
+     * @return logical blocks per physical block, 1 if nothing is shared
+     */
+    public double getRatio() {
+        return physicalBlockCount == 0 ? 1 : (double) logicalBlockCount / physicalBlockCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d logical blocks in %d physical blocks (ratio %.2f), %d shared, index has %d entries (%d bytes)",
+                logicalBlockCount,
+                physicalBlockCount,
+                getRatio(),
+                sharedBlockCount,
+                indexEntryCount,
+                indexMemoryUsage
+        );
+    }
+}
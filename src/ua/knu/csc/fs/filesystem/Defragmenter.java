@@ -0,0 +1,84 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Defragments a file system in the background, a few blocks at a time.
+ * Between steps the lock is released and the defragmenter sleeps, so that other users of the file system
+ * are not blocked for long. Files may stay open while this is running.
+ */
+public final class Defragmenter implements Runnable {
+    private final FileSystem fileSystem;
+    private final Lock fileSystemLock;
+    private final int movesPerStep;
+    private final long pauseMillis;
+
+    private volatile FragmentationStats statsBefore;
+    private volatile FragmentationStats statsAfter;
+
+    /**
+     * @param fileSystemLock lock which guards every access to the file system
+     * @param movesPerStep how many blocks to relocate while holding the lock
+     * @param pauseMillis how long to sleep between steps
+     */
+    public Defragmenter(FileSystem fileSystem, Lock fileSystemLock, int movesPerStep, long pauseMillis) {
+        if (movesPerStep <= 0)
+            throw new IllegalArgumentException("Should move at least one block per step");
+
+        this.fileSystem = fileSystem;
+        this.fileSystemLock = fileSystemLock;
+        this.movesPerStep = movesPerStep;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Run until the file system is fully defragmented, or until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        statsBefore = getStats();
+        try {
+            while (true) {
+                boolean hasMoreWork;
+                fileSystemLock.lock();
+                try {
+                    hasMoreWork = fileSystem.defragmentStep(movesPerStep);
+                } finally {
+                    fileSystemLock.unlock();
+                }
+                if (!hasMoreWork)
+                    break;
+                Thread.sleep(pauseMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (FakeIOException e) {
+            throw new RuntimeException("Defragmentation failed", e);
+        } finally {
+            statsAfter = getStats();
+        }
+    }
+
+    private FragmentationStats getStats() {
+        fileSystemLock.lock();
+        try {
+            return fileSystem.getFragmentationStats();
+        } finally {
+            fileSystemLock.unlock();
+        }
+    }
+
+    /**
+     * @return fragmentation before the run, null if it did not start yet
+     */
+    public FragmentationStats getStatsBefore() {
+        return statsBefore;
+    }
+
+    /**
+     * @return fragmentation after the run, null if it did not finish yet
+     */
+    public FragmentationStats getStatsAfter() {
+        return statsAfter;
+    }
+}
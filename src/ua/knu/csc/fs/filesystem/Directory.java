@@ -1,180 +1,256 @@
 package ua.knu.csc.fs.filesystem;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 class DirectoryEntry {
-    String name;
+    /**
+     * File name, encoded as UTF-8
+     */
+    final byte[] name;
     int fdIndex;
+    private String decodedName;
 
     DirectoryEntry(byte[] name, int fdIndex) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : name) {
-            if (b == 0)
-                break;
-            sb.append((char) b);
-        }
-        this.name = sb.toString();
+        this.name = name;
         this.fdIndex = fdIndex;
     }
 
-    DirectoryEntry(String name, int fdIndex) {
-        this.name = name;
-        this.fdIndex = fdIndex;
+    /**
+     * @return file name as a String, decoded only when it's actually needed
+     */
+    String getName() {
+        if (decodedName == null)
+            decodedName = new String(name, StandardCharsets.UTF_8);
+        return decodedName;
     }
 }
 
+/**
+ * Contents of the root directory, kept in RAM.
+ * <p>
+ * On disk the directory is split into chunks of one block each, records never cross a block boundary.
+ * Every chunk starts with a 2-byte record count, a chunk with 0 records marks the end of the directory.
+ * Each record contains:
+ * 4 bytes = 1 int, for FD index,
+ * 1 byte, for length of prefix shared with the previous name in the same chunk,
+ * 1 byte, for length of the remaining suffix,
+ * and then the suffix itself.
+ * Entries are sorted by name, so neighbouring names usually share a prefix.
+ */
 public class Directory {
-    static final int UNUSED_ENTRY = -1;
-    static final int ENTRY_SIZE = FileSystem.MAX_FILE_NAME_SIZE + Integer.BYTES;
-    ArrayList<DirectoryEntry> entries;
-    int unusedEntriesCount;
-    int maxEntryNumber;
-    int changedEntryIndex = -1;
-
-    Directory(int maxFileSize) {
+    static final int CHUNK_HEADER_SIZE = Short.BYTES;
+    static final int RECORD_HEADER_SIZE = Integer.BYTES + 2;
+    static final int MAX_NAME_BYTES = 255;
+
+    /**
+     * Sorted by unsigned byte order of {@link DirectoryEntry#name}
+     */
+    final ArrayList<DirectoryEntry> entries;
+    private final int blockSize;
+    private final int maxFileSize;
+
+    /**
+     * Copy of directory data as it is currently stored on disk
+     */
+    private byte[] savedData;
+    /**
+     * Offset from which data might differ from {@link #savedData}, because writing it failed
+     */
+    private int unsavedOffset = Integer.MAX_VALUE;
+
+    Directory(int blockSize, int maxFileSize) {
         this.entries = new ArrayList<>();
-        this.unusedEntriesCount = 0;
-        this.maxEntryNumber = maxFileSize / ENTRY_SIZE;
+        this.blockSize = blockSize;
+        this.maxFileSize = maxFileSize;
+        this.savedData = new byte[0];
     }
 
-    Directory(byte[] buffer, int maxFileSize) throws FakeIOException {
-        if (buffer.length % ENTRY_SIZE != 0) {
-            throw new FakeIOException("Directory data is corrupted");
-        }
-        this.maxEntryNumber = maxFileSize / ENTRY_SIZE;
-
-        int size = buffer.length / ENTRY_SIZE;
-        if (size > maxEntryNumber) {
-            throw new FakeIOException("Reached limit of entries number");
-        }
-        this.entries = new ArrayList<>(size);
+    Directory(byte[] buffer, int blockSize, int maxFileSize) throws FakeIOException {
+        this(blockSize, maxFileSize);
+        this.savedData = buffer;
 
         // Reading directory from byte array
         ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-        for (int i = 0; i < size; i++) {
-            byte[] name = new byte[FileSystem.MAX_FILE_NAME_SIZE];
-            byteBuffer.get(name);
-            int fdIndex = byteBuffer.getInt();
-            this.entries.add(new DirectoryEntry(
-                    name,
-                    fdIndex
-            ));
-
-            // Checking for unused entries
-            if (fdIndex == UNUSED_ENTRY) {
-                unusedEntriesCount += 1;
+        try {
+            for (int chunkStart = 0; chunkStart + CHUNK_HEADER_SIZE <= buffer.length; chunkStart += blockSize) {
+                byteBuffer.position(chunkStart);
+                int count = byteBuffer.getShort() & 0xFFFF;
+                if (count == 0)
+                    break;
+
+                byte[] previous = null;
+                for (int i = 0; i < count; i++) {
+                    int fdIndex = byteBuffer.getInt();
+                    int sharedLength = byteBuffer.get() & 0xFF;
+                    int suffixLength = byteBuffer.get() & 0xFF;
+                    if (sharedLength > 0 && (previous == null || sharedLength > previous.length))
+                        throw new FakeIOException("Directory data is corrupted");
+
+                    byte[] name = new byte[sharedLength + suffixLength];
+                    if (sharedLength > 0)
+                        System.arraycopy(previous, 0, name, 0, sharedLength);
+                    byteBuffer.get(name, sharedLength, suffixLength);
+
+                    entries.add(new DirectoryEntry(name, fdIndex));
+                    previous = name;
+                }
             }
+        } catch (BufferUnderflowException e) {
+            throw new FakeIOException("Directory data is corrupted");
         }
     }
 
     /**
-     * @param entry directory entry
-     * @return true if entry is unused, else - false
+     * @return max length of a file name in bytes, a record with such name must fit into one block
      */
-    public static boolean isUnused(DirectoryEntry entry) {
-        return entry.fdIndex == Directory.UNUSED_ENTRY;
+    int getMaxNameBytes() {
+        return Math.min(MAX_NAME_BYTES, blockSize - CHUNK_HEADER_SIZE - RECORD_HEADER_SIZE);
     }
 
     /**
-     * @return true if the directory has unused entry, else - false
+     * Look for the entry using binary search, names are compared byte by byte
+     * @param name file name encoded as UTF-8
+     * @return index of the entry, or (-(insertion point) - 1) if not found
      */
-    public boolean hasUnusedEntries() {
-        return unusedEntriesCount > 0;
+    int search(byte[] name) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = Arrays.compareUnsigned(entries.get(middle).name, name);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
     }
 
     /**
      * Convert this directory into byte array
      * @return byte array that represents the directory
+     * @throws FakeIOException directory does not fit into a file
      */
-    public byte[] toByteArray() {
-        byte[] buffer = new byte[entries.size() * ENTRY_SIZE];
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    public byte[] toByteArray() throws FakeIOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(maxFileSize);
+        int chunkStart = 0;
+        int count = 0;
+        byte[] previous = null;
 
         for (DirectoryEntry entry : entries) {
-            byteBuffer.put(entry.name.getBytes(StandardCharsets.UTF_8));
-            if (entry.name.length() < FileSystem.MAX_FILE_NAME_SIZE)
-                byteBuffer.put(new byte[FileSystem.MAX_FILE_NAME_SIZE - entry.name.length()]);
+            int sharedLength = previous == null ? 0 : sharedPrefixLength(previous, entry.name);
+            if (count == 0 || byteBuffer.position() + RECORD_HEADER_SIZE + entry.name.length - sharedLength
+                    > chunkStart + blockSize) {
+                // Start new chunk
+                if (count != 0) {
+                    byteBuffer.putShort(chunkStart, (short) count);
+                    chunkStart += blockSize;
+                }
+                if (chunkStart + blockSize > maxFileSize)
+                    throw new FakeIOException("Reached limit of entries number");
+                byteBuffer.position(chunkStart + CHUNK_HEADER_SIZE);
+                count = 0;
+                sharedLength = 0;
+            }
             byteBuffer.putInt(entry.fdIndex);
+            byteBuffer.put((byte) sharedLength);
+            byteBuffer.put((byte) (entry.name.length - sharedLength));
+            byteBuffer.put(entry.name, sharedLength, entry.name.length - sharedLength);
+            previous = entry.name;
+            count++;
         }
-        return byteBuffer.array();
+        if (count != 0)
+            byteBuffer.putShort(chunkStart, (short) count);
+
+        int length = byteBuffer.position();
+        int usedBlocks = (length + blockSize - 1) / blockSize;
+        if (usedBlocks * blockSize < savedData.length) {
+            // Old data is still on disk, add an empty chunk to mark the end
+            length = usedBlocks * blockSize + CHUNK_HEADER_SIZE;
+        }
+        return Arrays.copyOf(byteBuffer.array(), length);
     }
 
-    public byte[] entryToByteArray(int entryIndex) {
-        byte[] buffer = new byte[ENTRY_SIZE];
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    /**
+     * Compare new directory data with the data on disk, and remember it as saved.
+     * @param data result of {@link #toByteArray()}, about to be written to disk
+     * @return offset of the first block that has to be written
+     */
+    int markSaved(byte[] data) {
+        int firstChanged = Arrays.mismatch(data, 0, data.length, savedData, 0, Math.min(data.length, savedData.length));
+        if (firstChanged < 0)
+            firstChanged = data.length;
+        firstChanged = Math.min(firstChanged, Math.min(unsavedOffset, data.length));
+        unsavedOffset = Integer.MAX_VALUE;
 
-        DirectoryEntry entry = entries.get(entryIndex);
-        byteBuffer.put(entry.name.getBytes(StandardCharsets.UTF_8));
-        if (entry.name.length() < FileSystem.MAX_FILE_NAME_SIZE)
-            byteBuffer.put(new byte[FileSystem.MAX_FILE_NAME_SIZE - entry.name.length()]);
-        byteBuffer.putInt(entry.fdIndex);
+        if (data.length >= savedData.length) {
+            savedData = data;
+        } else {
+            System.arraycopy(data, 0, savedData, 0, data.length);
+        }
+        return firstChanged / blockSize * blockSize;
+    }
 
-        return byteBuffer.array();
+    /**
+     * Writing data from {@link #markSaved(byte[])} failed, it has to be written again next time
+     * @param offset offset returned by {@link #markSaved(byte[])}
+     */
+    void markUnsaved(int offset) {
+        unsavedOffset = Math.min(unsavedOffset, offset);
+    }
+
+    private static int sharedPrefixLength(byte[] a, byte[] b) {
+        int mismatch = Arrays.mismatch(a, b);
+        return mismatch < 0 ? a.length : mismatch;
     }
 
     /**
      * Create new entry in the directory
-     * @param name file name
+     * @param name file name encoded as UTF-8
      * @param fdIndex index of the file descriptor
-     * @throws FakeIOException file already exists
+     * @throws FakeIOException file already exists, or the directory is full
      */
-    public void createEntry(String name, int fdIndex) throws FakeIOException {
-        // Check entries limit
-        if (!hasUnusedEntries() && entries.size() >= maxEntryNumber) {
-            throw new FakeIOException("Reached limit of entries number");
-        }
+    public void createEntry(byte[] name, int fdIndex) throws FakeIOException {
+        int entryIndex = search(name);
+        if (entryIndex >= 0)
+            throw new FakeIOException("File already exists");
 
-        // Looking for free entry
-        int entryIndex = -1;
-        for (int i = 0; i < entries.size(); i++) {
-            if (isUnused(entries.get(i))) {
-                if (entryIndex == -1) {
-                    entryIndex = i;
-                }
-            } else if (entries.get(i).name.equals(name)) {
-                throw new FakeIOException("File already exists");
-            }
-        }
+        entryIndex = -entryIndex - 1;
+        entries.add(entryIndex, new DirectoryEntry(name, fdIndex));
 
-        // Adding new entry
-        if (entryIndex == -1) {
-            entries.add(new DirectoryEntry(name, fdIndex));
-            changedEntryIndex = entries.size() - 1;
-        } else {
-            entries.get(entryIndex).name = name;
-            entries.get(entryIndex).fdIndex = fdIndex;
-            changedEntryIndex = entryIndex;
-            unusedEntriesCount -= 1;
+        // Check entries limit
+        try {
+            toByteArray();
+        } catch (FakeIOException e) {
+            entries.remove(entryIndex);
+            throw e;
         }
     }
 
     /**
      * Find the entry in the directory
-     * @param name file name
+     * @param name file name encoded as UTF-8
      * @return index of the entry in the directory
      * @throws FakeIOException file doesn't exist
      */
-    public int findEntry(String name) throws FakeIOException {
-        // Looking for entry and return entry index
-        for (int i = 0; i < entries.size(); i++) {
-            if (name.equals(entries.get(i).name)) {
-                return i;
-            }
-        }
-        throw new FakeIOException("File doesn't exist");
+    public int findEntry(byte[] name) throws FakeIOException {
+        int entryIndex = search(name);
+        if (entryIndex < 0)
+            throw new FakeIOException("File doesn't exist");
+        return entryIndex;
     }
 
     /**
-     * Remove entry from the directory by changing fdIndex in {@link DirectoryEntry}
-     * to {@link #UNUSED_ENTRY}
+     * Remove entry from the directory
      * @param entryIndex index of the entry in the directory
      */
-    public void removeEntry(int entryIndex)
-    {
-        entries.get(entryIndex).fdIndex = UNUSED_ENTRY;
-        changedEntryIndex = entryIndex;
-        unusedEntriesCount += 1;
+    public void removeEntry(int entryIndex) {
+        entries.remove(entryIndex);
     }
 }
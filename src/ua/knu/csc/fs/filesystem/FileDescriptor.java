@@ -5,9 +5,28 @@ final class FileDescriptor {
      * Size of a file descriptor entry, in bytes:
      * 4 bytes = 1 int, for file size
      * 12 bytes = 3 ints, for pointers to 3 blocks
+     * or, if file size has {@link #INLINE_FLAG} set, 12 bytes of file data
+     * <p>
+     * The highest bits of file size are flags, and the amount of blocks with compressed data
      */
     static final int BYTES = 16;
 
+    /**
+     * Set in the file size field of files which are stored inline
+     */
+    static final int INLINE_FLAG = 0x80000000;
+    /**
+     * Files up to this size can be stored inside the FD, in place of block pointers
+     */
+    static final int INLINE_CAPACITY = 12;
+    /**
+     * Set in the file size field of files which are compressed
+     */
+    static final int COMPRESSED_FLAG = 0x40000000;
+    static final int COMPRESSED_BLOCKS_SHIFT = 28;
+    static final int COMPRESSED_BLOCKS_MASK = 0x30000000;
+    static final int SIZE_MASK = 0x0FFFFFFF;
+
     /**
      * File size in bytes
      */
@@ -20,6 +39,22 @@ final class FileDescriptor {
     static final int BLOCK_UNUSED = -1;
     static final int BLOCK_COUNT = 3;
 
+    /**
+     * Contents of the file if it's stored inline, {@link #INLINE_CAPACITY} bytes long.
+     * null if file data is stored in blocks.
+     */
+    byte[] inlineData;
+
+    /**
+     * If true, data of the file is compressed as a whole, see {@link FileSystem#setCompression(int, boolean)}
+     */
+    boolean compressed;
+    /**
+     * Amount of blocks at the start of {@link #blocks} which hold compressed data of the file,
+     * 0 if the data did not compress and is stored as is
+     */
+    int compressedBlockCount;
+
     public FileDescriptor(int fileSize, int[] blocks) {
         this.fileSize = fileSize;
         this.blocks = blocks;
@@ -29,6 +64,6 @@ final class FileDescriptor {
      * @return true if this file descriptor can be overwritten by another FD for a new file.
      */
     public boolean isUnused() {
-        return (fileSize == 0 && blocks[0] == 0);
+        return (fileSize == 0 && blocks[0] == 0 && inlineData == null);
     }
 }
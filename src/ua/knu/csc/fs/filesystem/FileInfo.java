@@ -0,0 +1,24 @@
+package ua.knu.csc.fs.filesystem;
+
+/**
+ * Name and attributes of a file in the root directory, see {@link FileSystem#iterateFiles()}
+ */
+public final class FileInfo {
+    public final String name;
+    public final int size;
+    /**
+     * Amount of data blocks allocated to the file, holes and inline files don't take any
+     */
+    public final int blockCount;
+
+    FileInfo(String name, int size, int blockCount) {
+        this.name = name;
+        this.size = size;
+        this.blockCount = blockCount;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + size;
+    }
+}
@@ -4,64 +4,165 @@ import ua.knu.csc.fs.IOSystem;
 import ua.knu.csc.fs.MathUtils;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class FileSystem implements BasicFileSystem {
+    /**
+     * File which takes part in defragmentation
+     */
+    private static final class FileRef {
+        final int fdIndex;
+        /**
+         * Same instance as in {@link #openFile} if the file is open
+         */
+        final FileDescriptor fd;
+        /**
+         * null if file is not open
+         */
+        final OpenFile openFile;
+
+        FileRef(int fdIndex, FileDescriptor fd, OpenFile openFile) {
+            this.fdIndex = fdIndex;
+            this.fd = fd;
+            this.openFile = openFile;
+        }
+    }
 
-public final class FileSystem {
     private final IOSystem ioSystem;
 
     //size of Opened File Table
     private static final int OFT_SIZE = 3;
-    private static int maxFileSize;
+    private final int maxFileSize;
     private final OpenFileTable oftTable;
     private final OpenFile root;
     private final Directory directory;
     private final FileDescriptor initFileDescriptor;
 
     /**
-     * k reserved blocks.
-     * 1st reserved block contains only the bitmap,
-     * the other k-1 blocks each can contain multiple file descriptors
+     * Start of the 1st block on a formatted device, the last byte is the version of the format.
+     * A device without it is only formatted if the 1st block is all zeros.
+     */
+    private static final int FORMAT_MAGIC = 0x55465332;
+    /**
+     * Magic and bitmap, the FD block map follows
+     */
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+
+    /**
+     * 1st block contains the magic, the bitmap and the FD block map, every other block is a data block.
+     * Blocks with file descriptors are taken from data blocks as more files are created,
+     * and given back once all of their FDs are free.
      */
-    private final int reservedBlocks;
+    private static final int FIRST_DATA_BLOCK = 1;
     private final int numOfFdInBlock;
 
+    /**
+     * Pointer to the block with each group of {@link #numOfFdInBlock} FDs, {@link #NO_FD_BLOCK} if the group
+     * has no block. Stored in the 1st block, after the magic and the bitmap. Group 0 contains the root FD, so its block always stays.
+     */
+    private final int[] fdBlockMap;
+    //1st block is never a block with FDs
+    private static final int NO_FD_BLOCK = 0;
+
+    /**
+     * Size and amount of data blocks of every FD, indexed by FD index, so that listing files
+     * does not have to read FD blocks. Filled in when an FD block is first read,
+     * and updated whenever an FD is written. {@link #ATTRIBUTES_UNKNOWN} if not filled in yet.
+     */
+    private final int[] cachedSizes;
+    private final byte[] cachedBlockCounts;
+    private static final int ATTRIBUTES_UNKNOWN = -1;
+
     private long bitmap;
+    /**
+     * Bitmap as it was last written to disk. Blocks can be freed and taken again before the bitmap is saved,
+     * so comparing with this is the only way to tell whether it has to be saved
+     */
+    private long savedBitmap;
+    private AllocationPolicy allocationPolicy = AllocationPolicy.FIRST_FREE;
+
+    /**
+     * How many FDs point to each data block, indexed by position in the data area, blocks with FDs have none.
+     * Only deduplication makes blocks shared, a shared block is copied before it is modified.
+     * Not stored on disk, counted from FDs when the file system is loaded.
+     */
+    private final int[] refCounts = new int[MAX_DATA_BLOCKS];
+    /**
+     * null if deduplication is off
+     */
+    private DeduplicationIndex deduplicationIndex;
+
+    /**
+     * Each compressed file is a single cluster of up to {@link FileDescriptor#BLOCK_COUNT} blocks,
+     * which is compressed and stored as a whole
+     */
+    private final ClusterCache clusterCache = new ClusterCache(CLUSTER_CACHE_SIZE);
+    private static final int CLUSTER_CACHE_SIZE = 4;
+
+    /**
+     * While a batch is being applied, metadata is kept in memory and written to disk once the batch is done:
+     * FD blocks changed by the batch, and whether bitmap and directory have to be saved.
+     * batchFdBlocks is null when no batch is being applied.
+     */
+    private HashMap<Integer, byte[]> batchFdBlocks;
+    private boolean batchBitmapDirty;
+    private boolean batchDirectoryDirty;
 
     public static final int END_OF_FILE = -1;
-    public static final int MAX_FILE_NAME_SIZE = 4;
+    /**
+     * Max length of file name in bytes (when encoded as UTF-8),
+     * devices with small blocks have a lower limit, see {@link Directory#getMaxNameBytes()}
+     */
+    public static final int MAX_FILE_NAME_SIZE = Directory.MAX_NAME_BYTES;
 
     //Limited by bitmap size
     private static final int MAX_DATA_BLOCKS = 64;
 
     public FileSystem(IOSystem ioSystem) throws FakeIOException {
+        this(ioSystem, OFT_SIZE);
+    }
+
+    /**
+     * @param openFileTableSize size of Opened File Table, one entry is always taken by the root directory
+     */
+    public FileSystem(IOSystem ioSystem, int openFileTableSize) throws FakeIOException {
+        if (openFileTableSize < 2)
+            throw new IllegalArgumentException("Opened File Table should have room for at least one file");
         if (ioSystem.blockSize % FileDescriptor.BYTES != 0)
             throw new IllegalArgumentException("This file system only supports I/O devices where block size is a multiple of " + FileDescriptor.BYTES);
 
         this.ioSystem = ioSystem;
-        this.oftTable = new OpenFileTable(OFT_SIZE, ioSystem.blockSize);
+        this.oftTable = new OpenFileTable(openFileTableSize, ioSystem.blockSize);
 
         this.numOfFdInBlock = ioSystem.blockSize / FileDescriptor.BYTES;
 
-        // Calculate reserved blocks area size
-        // Assume that every file, on average, takes up 2 data blocks.
-        // In this case, we want the reserved area and the data area to fill up at the same time.
-
-        // If x is the amount of FileDescriptor blocks:
-        // (max. amount of data blocks described by FDs == actual amount of data blocks)
-        // x * numOfFdInBlock * 2 == ioSystem.blockCount - x - 1
-
-        final int AVG_FILE_BLOCKS = 2;
-        // (Add +1 for bitmap block)
-        this.reservedBlocks = Math.min(
-                1 + MathUtils.divideCeil(ioSystem.blockCount - 1, numOfFdInBlock * AVG_FILE_BLOCKS + 1),
-                1 + MAX_DATA_BLOCKS / (numOfFdInBlock * AVG_FILE_BLOCKS)
-        );
+        // FDs take up as many data blocks as there are files, so the map only needs one entry per data block,
+        // as long as it fits in the 1st block after the bitmap
+        int dataBlocks = Math.min(ioSystem.blockCount - FIRST_DATA_BLOCK, MAX_DATA_BLOCKS);
+        this.fdBlockMap = new int[Math.min(dataBlocks, (ioSystem.blockSize - HEADER_BYTES) / Integer.BYTES)];
 
         System.err.printf(
-                "Created FS with 1 bitmap block, %d FD blocks, %d data blocks\n",
-                reservedBlocks - 1,
-                Math.min(ioSystem.blockCount - reservedBlocks, MAX_DATA_BLOCKS)
+                "Created FS with 1 bitmap block, %d data blocks, up to %d of them for FDs\n",
+                dataBlocks,
+                fdBlockMap.length
         );
 
+        this.cachedSizes = new int[fdBlockMap.length * numOfFdInBlock];
+        this.cachedBlockCounts = new byte[cachedSizes.length];
+        Arrays.fill(cachedSizes, ATTRIBUTES_UNKNOWN);
+
         // Create init fd
         this.initFileDescriptor = new FileDescriptor(0, new int[]{
                 FileDescriptor.BLOCK_UNUSED,
@@ -69,14 +170,20 @@ public final class FileSystem {
                 FileDescriptor.BLOCK_UNUSED
         });
 
-        maxFileSize = ioSystem.blockSize * FileDescriptor.BLOCK_COUNT;
+        this.maxFileSize = ioSystem.blockSize * FileDescriptor.BLOCK_COUNT;
 
-        // Make sure that root file descriptor is valid
         byte[] buffer = new byte[ioSystem.blockSize];
-        ioSystem.readBlock(getBlockWithFd(0), buffer);
-        FileDescriptor fileDescriptor = parseFdInBlock(0, buffer);
-
-        if (fileDescriptor.isUnused()) {
+        ioSystem.readBlock(0, buffer);
+        ByteBuffer header = ByteBuffer.wrap(buffer);
+        boolean formatted = header.getInt() == FORMAT_MAGIC;
+        if (!formatted && !isZero(buffer, 0, ioSystem.blockSize))
+            throw new FakeIOException("Device has data on it, but not a file system of this version");
+
+        // Format the device if it is empty
+        if (!formatted) {
+            bitmap = 0;
+            allocateFdBlock(0);
+            buffer = new byte[ioSystem.blockSize];
             writeFdToBlock(0, initFileDescriptor, buffer);
             ioSystem.writeBlock(getBlockWithFd(0), buffer);
 
@@ -87,15 +194,29 @@ public final class FileSystem {
             }));
             root = oftTable.getOpenFile(rootIndex);
 
-            this.directory = new Directory(maxFileSize);
+            this.directory = new Directory(ioSystem.blockSize, maxFileSize);
         } else {
+            bitmap = header.getLong();
+            savedBitmap = bitmap;
+            for (int i = 0; i < fdBlockMap.length; i++)
+                fdBlockMap[i] = header.getInt();
+
+            ioSystem.readBlock(getBlockWithFd(0), buffer);
+            FileDescriptor fileDescriptor = parseFdInBlock(0, buffer);
             int rootIndex = oftTable.allocate(0, fileDescriptor);
             root = oftTable.getOpenFile(rootIndex);
 
             // Read directory data from file system
             byte[] dirBuffer = new byte[fileDescriptor.fileSize];
-            read(this.root, dirBuffer, fileDescriptor.fileSize);
-            this.directory = new Directory(dirBuffer, maxFileSize);
+            read(this.root, dirBuffer, 0, fileDescriptor.fileSize);
+            this.directory = new Directory(dirBuffer, ioSystem.blockSize, maxFileSize);
+
+            for (FileRef file : getAllFiles()) {
+                for (int block : file.fd.blocks) {
+                    if (block != FileDescriptor.BLOCK_UNUSED)
+                        refCounts[block - FIRST_DATA_BLOCK]++;
+                }
+            }
         }
     }
 
@@ -107,33 +228,60 @@ public final class FileSystem {
      * @param count how many bytes to read
      * @return amount of bytes read, {@link #END_OF_FILE} if reached end of file
      */
+    @Override
     public int read(int openFile, byte[] buffer, int count) throws FakeIOException {
-        return read(oftTable.getOpenFileSafe(openFile), buffer, count);
+        return read(oftTable.getOpenFileSafe(openFile), buffer, 0, count);
+    }
+
+    /**
+     * Read contents of file into part of buffer
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to read into
+     * @param offset position in buffer where the data goes
+     * @param count how many bytes to read
+     * @return amount of bytes read, {@link #END_OF_FILE} if reached end of file
+     */
+    @Override
+    public int read(int openFile, byte[] buffer, int offset, int count) throws FakeIOException {
+        return read(oftTable.getOpenFileSafe(openFile), buffer, offset, count);
     }
 
-    private int read(OpenFile file, byte[] buffer, int count) {
-        if (count > buffer.length)
+    private int read(OpenFile file, byte[] buffer, int offset, int count) {
+        if (offset < 0 || count < 0 || count > buffer.length - offset)
             throw new IllegalArgumentException("Byte count is bigger than buffer size!");
 
-        if (file.position == file.fd.fileSize)
+        if (file.position >= file.fd.fileSize)
             return END_OF_FILE;
 
+        //Data of tiny files is in the cached FD, no need for I/O
+        if (file.fd.inlineData != null) {
+            int copyCount = Math.min(count, file.fd.fileSize - file.position);
+            System.arraycopy(file.fd.inlineData, file.position, buffer, offset, copyCount);
+            file.position += copyCount;
+            return copyCount;
+        }
+
         int bytesRead = 0;
         while (bytesRead < count) {
-            if (file.position == file.fd.fileSize)
+            if (file.position >= file.fd.fileSize)
                 break;
 
-            //Need to swap buffers
-            if (file.bufferBlockNum != file.position / ioSystem.blockSize) {
-                if (file.dirtyBuffer) {
-                    //If file was modified, write changes to disk
-                    ioSystem.writeBlock(file.fd.blocks[file.bufferBlockNum], file.buffer);
-                    file.dirtyBuffer = false;
-                }
-                file.bufferBlockNum = file.position / ioSystem.blockSize;
-                ioSystem.readBlock(file.fd.blocks[file.bufferBlockNum], file.buffer);
+            //Whole blocks are read straight into the caller's buffer
+            int directBlocks = getDirectBlockCount(file, Math.min(file.fd.fileSize - file.position, count - bytesRead));
+            if (file.dirtyBuffer && file.bufferBlockNum >= file.position / ioSystem.blockSize)
+                directBlocks = Math.min(directBlocks, file.bufferBlockNum - file.position / ioSystem.blockSize);
+            if (directBlocks > 0) {
+                readBlocksDirect(file.fd, file.position / ioSystem.blockSize, directBlocks, buffer, offset + bytesRead);
+                bytesRead += directBlocks * ioSystem.blockSize;
+                file.position += directBlocks * ioSystem.blockSize;
+                continue;
             }
 
+            //Need to swap buffers
+            if (file.bufferBlockNum != file.position / ioSystem.blockSize)
+                swapBuffer(file, file.position / ioSystem.blockSize);
+
             int positionInBuffer = file.position % file.buffer.length;
             int copyCount = Math.min(
                     Math.min(file.fd.fileSize - file.position, count - bytesRead),
@@ -143,7 +291,7 @@ public final class FileSystem {
                     file.buffer,
                     positionInBuffer,
                     buffer,
-                    bytesRead,
+                    offset + bytesRead,
                     copyCount
             );
             bytesRead += copyCount;
@@ -152,6 +300,134 @@ public final class FileSystem {
         return bytesRead;
     }
 
+    /**
+     * Read contents of file starting at a given position, the read/write position of the open file is not used
+     *
+     * @param openFile open file index obtained via open()
+     * @param position position in file to read from
+     * @param buffer data buffer to read into
+     * @param count how many bytes to read
+     * @return amount of bytes read, {@link #END_OF_FILE} if position is at or past end of file
+     */
+    public int read(int openFile, int position, byte[] buffer, int count) throws FakeIOException {
+        return read(openFile, position, buffer, 0, count);
+    }
+
+    /**
+     * Read contents of file starting at a given position into part of buffer,
+     * the read/write position of the open file is not used.
+     * <p>
+     * Nothing is modified, not even the buffer of the open file, so several threads may read at once
+     * as long as nothing else is using the file system at the same time and the device allows it,
+     * see {@link #canReadConcurrently()}. The cache of decompressed files is synchronized.
+     *
+     * @param openFile open file index obtained via open()
+     * @param position position in file to read from
+     * @param buffer data buffer to read into
+     * @param offset position in buffer where the data goes
+     * @param count how many bytes to read
+     * @return amount of bytes read, {@link #END_OF_FILE} if position is at or past end of file
+     */
+    public int read(int openFile, int position, byte[] buffer, int offset, int count) throws FakeIOException {
+        if (offset < 0 || count < 0 || count > buffer.length - offset)
+            throw new IllegalArgumentException("Byte count is bigger than buffer size!");
+        if (position < 0)
+            throw new FakeIOException("Can't read at position " + position);
+
+        return read(oftTable.getOpenFileSafe(openFile), position, buffer, offset, count);
+    }
+
+    private int read(OpenFile file, int position, byte[] buffer, int offset, int count) {
+        FileDescriptor fd = file.fd;
+        if (position >= fd.fileSize)
+            return END_OF_FILE;
+        count = Math.min(count, fd.fileSize - position);
+
+        if (fd.inlineData != null) {
+            System.arraycopy(fd.inlineData, position, buffer, offset, count);
+            return count;
+        }
+
+        byte[] block = null;
+        int bytesRead = 0;
+        while (bytesRead < count) {
+            int blockNum = (position + bytesRead) / ioSystem.blockSize;
+            int positionInBlock = (position + bytesRead) % ioSystem.blockSize;
+            int copyCount = Math.min(count - bytesRead, ioSystem.blockSize - positionInBlock);
+
+            if (blockNum == file.bufferBlockNum) {
+                //Buffer may have changes which are not on disk yet
+                System.arraycopy(file.buffer, positionInBlock, buffer, offset + bytesRead, copyCount);
+            } else if (fd.compressed) {
+                byte[] cluster = getCluster(file.fdIndex, fd);
+                System.arraycopy(cluster, position + bytesRead, buffer, offset + bytesRead, copyCount);
+            } else if (copyCount == ioSystem.blockSize) {
+                //Whole blocks are read straight into the caller's buffer, up to the buffered block
+                int directBlocks = (count - bytesRead) / ioSystem.blockSize;
+                if (file.bufferBlockNum > blockNum)
+                    directBlocks = Math.min(directBlocks, file.bufferBlockNum - blockNum);
+                readBlocksDirect(fd, blockNum, directBlocks, buffer, offset + bytesRead);
+                copyCount = directBlocks * ioSystem.blockSize;
+            } else {
+                if (block == null)
+                    block = new byte[ioSystem.blockSize];
+                readBlocksDirect(fd, blockNum, 1, block, 0);
+                System.arraycopy(block, positionInBlock, buffer, offset + bytesRead, copyCount);
+            }
+            bytesRead += copyCount;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Read whole blocks of a file into buffer. Holes are filled with zeros, without any I/O.
+     *
+     * @param firstBlock relative index of the first block
+     * @param count amount of blocks
+     * @param offset position in buffer where data for first block goes
+     */
+    private void readBlocksDirect(FileDescriptor fd, int firstBlock, int count, byte[] buffer, int offset) {
+        int runStart = firstBlock;
+        for (int i = firstBlock; i <= firstBlock + count; i++) {
+            if (i < firstBlock + count && fd.blocks[i] != FileDescriptor.BLOCK_UNUSED)
+                continue;
+
+            if (i > runStart) {
+                ioSystem.readBlocks(
+                        Arrays.copyOfRange(fd.blocks, runStart, i),
+                        i - runStart,
+                        buffer,
+                        offset + (runStart - firstBlock) * ioSystem.blockSize
+                );
+            }
+            if (i < firstBlock + count) {
+                int holeStart = offset + (i - firstBlock) * ioSystem.blockSize;
+                Arrays.fill(buffer, holeStart, holeStart + ioSystem.blockSize, (byte) 0);
+            }
+            runStart = i + 1;
+        }
+    }
+
+    /**
+     * Write back current buffer if it was modified, and load another block of the file into the buffer.
+     * Holes are loaded as zeros, without any I/O.
+     *
+     * @param blockNum relative index of the block to load
+     */
+    private void swapBuffer(OpenFile file, int blockNum) {
+        if (file.dirtyBuffer) {
+            //If file was modified, write changes to disk
+            storeBlock(file, file.bufferBlockNum, file.buffer, 0);
+            file.dirtyBuffer = false;
+        }
+        file.bufferBlockNum = blockNum;
+        if (file.fd.compressed)
+            System.arraycopy(getCluster(file.fdIndex, file.fd), blockNum * ioSystem.blockSize, file.buffer, 0, ioSystem.blockSize);
+        else if (file.fd.blocks[blockNum] == FileDescriptor.BLOCK_UNUSED)
+            Arrays.fill(file.buffer, (byte) 0);
+        else
+            ioSystem.readBlock(file.fd.blocks[blockNum], file.buffer);
+    }
 
     /**
      * Write contents of buffer into file
@@ -161,51 +437,127 @@ public final class FileSystem {
      * @param count how many bytes to write
      * @return amount of bytes written
      */
+    @Override
     public int write(int openFile, byte[] buffer, int count) throws FakeIOException {
-        return write(oftTable.getOpenFileSafe(openFile), buffer, count);
+        return write(getOpenFileForChange(openFile), buffer, 0, count);
+    }
+
+    /**
+     * Write part of buffer into file
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to write from
+     * @param offset position in buffer where the data starts
+     * @param count how many bytes to write
+     * @return amount of bytes written
+     */
+    @Override
+    public int write(int openFile, byte[] buffer, int offset, int count) throws FakeIOException {
+        return write(getOpenFileForChange(openFile), buffer, offset, count);
+    }
+
+    /**
+     * Write contents of buffer into file starting at a given position,
+     * the read/write position of the open file stays the same
+     *
+     * @param openFile open file index obtained via open()
+     * @param position position in file to write to, writing past end of file leaves a hole
+     * @param buffer data buffer to write from
+     * @param count how many bytes to write
+     * @return amount of bytes written
+     */
+    public int write(int openFile, int position, byte[] buffer, int count) throws FakeIOException {
+        return write(openFile, position, buffer, 0, count);
+    }
+
+    /**
+     * Write part of buffer into file starting at a given position,
+     * the read/write position of the open file stays the same
+     *
+     * @param openFile open file index obtained via open()
+     * @param position position in file to write to, writing past end of file leaves a hole
+     * @param buffer data buffer to write from
+     * @param offset position in buffer where the data starts
+     * @param count how many bytes to write
+     * @return amount of bytes written
+     */
+    public int write(int openFile, int position, byte[] buffer, int offset, int count) throws FakeIOException {
+        OpenFile file = getOpenFileForChange(openFile);
+        int oldPosition = file.position;
+        seek(file, position);
+        try {
+            return write(file, buffer, offset, count);
+        } finally {
+            file.position = oldPosition;
+        }
     }
 
-    private int write(OpenFile file, byte[] buffer, int count) throws FakeIOException {
-        if (count > buffer.length)
+    private int write(OpenFile file, byte[] buffer, int offset, int count) throws FakeIOException {
+        if (offset < 0 || count < 0 || count > buffer.length - offset)
             throw new IllegalArgumentException("Byte count is bigger than buffer size!");
 
-        long oldBitmap = bitmap;
+        //Tiny files are stored inside their FD
+        if (file.fd.inlineData == null && canStoreInline(file.fd, file.position + count)) {
+            file.fd.inlineData = new byte[FileDescriptor.INLINE_CAPACITY];
+            file.bufferBlockNum = OpenFile.BUFFER_BLOCK_NUM_NONE;
+        }
+        if (file.fd.inlineData != null) {
+            if (file.position + count <= FileDescriptor.INLINE_CAPACITY) {
+                System.arraycopy(buffer, offset, file.fd.inlineData, file.position, count);
+                file.position += count;
+                file.fd.fileSize = Math.max(file.fd.fileSize, file.position);
+                file.dirtyFd = true;
+                return count;
+            }
+            moveInlineDataToBlock(file);
+        }
 
         int bytesWritten = 0;
         while (bytesWritten < count) {
+            //Whole blocks are written straight from the caller's buffer
+            int directBlocks = getDirectBlockCount(file, count - bytesWritten);
+            if (directBlocks > 0) {
+                writeBlocksDirect(file, file.position / ioSystem.blockSize, directBlocks, buffer, offset + bytesWritten);
+                bytesWritten += directBlocks * ioSystem.blockSize;
+                file.position += directBlocks * ioSystem.blockSize;
+                if (file.position > file.fd.fileSize) {
+                    file.fd.fileSize = file.position;
+                    file.dirtyFd = true;
+                }
+                continue;
+            }
+
             //Need to swap buffers
             if (file.bufferBlockNum != file.position / ioSystem.blockSize) {
-                if (file.dirtyBuffer) {
-                    //If file was modified, write changes to disk
-                    ioSystem.writeBlock(file.fd.blocks[file.bufferBlockNum], file.buffer);
-                    file.dirtyBuffer = false;
-                }
+                if (file.position / ioSystem.blockSize >= FileDescriptor.BLOCK_COUNT)
+                    throw new FakeIOException("File can only be " + FileDescriptor.BLOCK_COUNT + " blocks long");
 
-                if (file.position / ioSystem.blockSize >= 3)
-                    throw new FakeIOException("File can only be 3 blocks long");
+                swapBuffer(file, file.position / ioSystem.blockSize);
+            }
 
-                //Get pointer to next block
-                if (file.fd.blocks[file.position / ioSystem.blockSize] == FileDescriptor.BLOCK_UNUSED) {
+            int positionInBuffer = file.position % file.buffer.length;
+            int copyCount = Math.min(
+                    count - bytesWritten,
+                    file.buffer.length - positionInBuffer
+            );
+            if (file.fd.compressed) {
+                reserveClusterBlocks(file, Math.max(file.fd.fileSize, file.position + copyCount));
+            } else {
+                //Get pointer to next block, a hole could also have been loaded into the buffer by a read
+                if (file.fd.blocks[file.bufferBlockNum] == FileDescriptor.BLOCK_UNUSED) {
                     //Allocate new block
                     long[] bitmapRef = new long[]{bitmap};
-                    int newBlock = allocateDataBlock(bitmapRef);
+                    int newBlock = allocateDataBlock(bitmapRef, getAllocationGoal(file, file.bufferBlockNum));
                     bitmap = bitmapRef[0];
 
-                    file.fd.blocks[file.position / ioSystem.blockSize] = newBlock;
+                    file.fd.blocks[file.bufferBlockNum] = newBlock;
                     file.dirtyFd = true;
                 }
-                file.bufferBlockNum = file.position / ioSystem.blockSize;
-                ioSystem.readBlock(file.fd.blocks[file.bufferBlockNum], file.buffer);
+                unshareBlock(file, file.bufferBlockNum);
             }
-
-            int positionInBuffer = file.position % file.buffer.length;
-            int copyCount = Math.min(
-                    count - bytesWritten,
-                    file.buffer.length - positionInBuffer
-            );
             System.arraycopy(
                     buffer,
-                    bytesWritten,
+                    offset + bytesWritten,
                     file.buffer,
                     file.position % file.buffer.length,
                     copyCount
@@ -219,97 +571,1079 @@ public final class FileSystem {
             file.dirtyBuffer = true;
         }
         //Update bitmap now
-        if (oldBitmap != bitmap) {
-            byte[] bitmapBlock = new byte[ioSystem.blockSize];
-            MathUtils.toBytes(bitmap, bitmapBlock);
-            ioSystem.writeBlock(0, bitmapBlock);
-        }
+        if (bitmap != savedBitmap)
+            saveBitmap();
         return bytesWritten;
     }
 
+    /**
+     * @param size file size that the file is going to have
+     * @return true if the file has no data blocks and will fit inside its FD
+     */
+    private static boolean canStoreInline(FileDescriptor fd, int size) {
+        if (Math.max(fd.fileSize, size) > FileDescriptor.INLINE_CAPACITY)
+            return false;
+        for (int block : fd.blocks) {
+            if (block != FileDescriptor.BLOCK_UNUSED)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Move data of an inline file into a newly allocated block, so that the file can grow.
+     * The data stays in the buffer, the bitmap still has to be saved afterwards.
+     */
+    private void moveInlineDataToBlock(OpenFile file) throws FakeIOException {
+        long[] bitmapRef = new long[]{bitmap};
+        file.fd.blocks[0] = allocateDataBlock(bitmapRef, getAllocationGoal(file, 0));
+        bitmap = bitmapRef[0];
+
+        Arrays.fill(file.buffer, (byte) 0);
+        System.arraycopy(file.fd.inlineData, 0, file.buffer, 0, FileDescriptor.INLINE_CAPACITY);
+        file.bufferBlockNum = 0;
+        file.dirtyBuffer = true;
+
+        file.fd.inlineData = null;
+        file.dirtyFd = true;
+    }
+
+    /**
+     * Write whole blocks of a file from buffer, allocating blocks as needed.
+     * Blocks which are all zeros are not allocated if they are holes, so they stay holes.
+     * Shared blocks are replaced with new ones.
+     *
+     * @param firstBlock relative index of the first block
+     * @param count amount of blocks
+     * @param offset position in buffer where data for first block is
+     */
+    private void writeBlocksDirect(OpenFile file, int firstBlock, int count, byte[] buffer, int offset)
+            throws FakeIOException {
+        //Buffered block is about to be overwritten completely
+        if (file.bufferBlockNum >= firstBlock && file.bufferBlockNum < firstBlock + count) {
+            file.bufferBlockNum = OpenFile.BUFFER_BLOCK_NUM_NONE;
+            file.dirtyBuffer = false;
+        }
+
+        int runStart = firstBlock;
+        for (int i = firstBlock; i <= firstBlock + count; i++) {
+            int blockOffset = offset + (i - firstBlock) * ioSystem.blockSize;
+            if (i < firstBlock + count) {
+                if (file.fd.blocks[i] != FileDescriptor.BLOCK_UNUSED) {
+                    unshareBlock(file, i);
+                    continue;
+                }
+                if (!isZero(buffer, blockOffset, ioSystem.blockSize)) {
+                    long[] bitmapRef = new long[]{bitmap};
+                    file.fd.blocks[i] = allocateDataBlock(bitmapRef, getAllocationGoal(file, i));
+                    bitmap = bitmapRef[0];
+                    file.dirtyFd = true;
+                    continue;
+                }
+            }
+
+            if (i > runStart && deduplicationIndex != null) {
+                //Each block may turn out to be a duplicate, even of a later block of this run which still has old data,
+                //so a block may have become shared by the time it is stored
+                for (int j = runStart; j < i; j++) {
+                    unshareBlock(file, j);
+                    storeBlock(file, j, buffer, offset + (j - firstBlock) * ioSystem.blockSize);
+                }
+            } else if (i > runStart) {
+                ioSystem.writeBlocks(
+                        Arrays.copyOfRange(file.fd.blocks, runStart, i),
+                        i - runStart,
+                        buffer,
+                        offset + (runStart - firstBlock) * ioSystem.blockSize
+                );
+            }
+            runStart = i + 1;
+        }
+    }
+
+    private static boolean isZero(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffer[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Multi-block requests let devices like {@link ua.knu.csc.fs.StripedIOSystem} serve blocks in parallel.
+     *
+     * @param length how many bytes are going to be transferred
+     * @return how many whole blocks starting at current position can be transferred
+     * between the device and the caller's buffer directly, bypassing {@link OpenFile#buffer}
+     */
+    private int getDirectBlockCount(OpenFile file, int length) {
+        //Compressed files always go through the buffer, their blocks don't match blocks of the file
+        if (file.fd.compressed || file.position % ioSystem.blockSize != 0)
+            return 0;
+        int firstBlock = file.position / ioSystem.blockSize;
+        return Math.max(0, Math.min(length / ioSystem.blockSize, FileDescriptor.BLOCK_COUNT - firstBlock));
+    }
+
     /**
      * Move current read/write position in open file
      * @param openFile index of open file, obtained via {@link #openFile(String)}
      * @param position new read/write position
      */
+    @Override
     public void seek(int openFile, int position) throws FakeIOException {
         seek(oftTable.getOpenFileSafe(openFile), position);
     }
 
     private void seek(OpenFile file, int position) throws FakeIOException {
-        if (position < 0 || position > file.fd.fileSize)
+        //Seeking past end of file is fine, writing there leaves a hole
+        if (position < 0 || position > maxFileSize)
             throw new FakeIOException("Can't seek to position " + position +
-                    ", file size is " + file.fd.fileSize);
+                    ", max file size is " + maxFileSize);
 
         //No need to swap buffers in seek function, read/write functions do this automatically
         file.position = position;
     }
 
     /**
-     * @param fdIndex index of file descriptor
-     * @return index of block with file descriptor
+     * Reserve blocks for the first length bytes of an open file, so that they don't have to be allocated
+     * one at a time by writes. If possible, blocks are taken from a single run of free blocks,
+     * right after the blocks which the file already has. File size does not change.
+     *
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @param length amount of bytes to reserve space for, counting from start of the file
      */
-    private int getBlockWithFd(int fdIndex) {
-        return 1 + fdIndex * FileDescriptor.BYTES / ioSystem.blockSize;
+    public void allocate(int openFile, int length) throws FakeIOException {
+        allocate(oftTable.getOpenFileSafe(openFile), length);
     }
 
-    /**
-     * @param fdIndex index of file descriptor
-     * @return position of the fd in block
-     */
-    private int getPositionInBlock(int fdIndex) {
-        return fdIndex * FileDescriptor.BYTES % ioSystem.blockSize;
+    private void allocate(OpenFile file, int length) throws FakeIOException {
+        if (length < 0 || length > maxFileSize)
+            throw new FakeIOException("Can't allocate " + length + " bytes, max file size is " + maxFileSize);
+        //Space taken by compressed files depends on their data
+        if (file.fd.compressed)
+            return;
+
+        if (file.fd.inlineData != null) {
+            if (length <= FileDescriptor.INLINE_CAPACITY)
+                return;
+            moveInlineDataToBlock(file);
+        }
+
+        int blockCount = MathUtils.divideCeil(length, ioSystem.blockSize);
+        int missingCount = 0;
+        int goal = FIRST_DATA_BLOCK;
+        for (int i = 0; i < blockCount; i++) {
+            if (file.fd.blocks[i] == FileDescriptor.BLOCK_UNUSED)
+                missingCount++;
+            else if (missingCount == 0)
+                goal = file.fd.blocks[i] + 1;
+        }
+        if (missingCount == 0) {
+            if (bitmap != savedBitmap)
+                saveBitmap();
+            return;
+        }
+
+        int[] newBlocks = new int[missingCount];
+        int runStart = findFreeRun(missingCount, goal);
+        if (runStart >= 0) {
+            for (int j = 0; j < missingCount; j++) {
+                newBlocks[j] = runStart + j;
+                bitmap = MathUtils.setOneByte(bitmap, newBlocks[j] - FIRST_DATA_BLOCK);
+                refCounts[newBlocks[j] - FIRST_DATA_BLOCK] = 1;
+            }
+        } else {
+            //Free space is fragmented, take any free blocks
+            long[] bitmapRef = new long[]{bitmap};
+            for (int j = 0; j < missingCount; j++)
+                newBlocks[j] = allocateDataBlock(bitmapRef, j == 0 ? goal : newBlocks[j - 1] + 1);
+            bitmap = bitmapRef[0];
+        }
+
+        //Reserved blocks are going to be read once the file grows, so clear old data
+        ioSystem.writeBlocks(newBlocks, missingCount, new byte[missingCount * ioSystem.blockSize], 0);
+
+        int j = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (file.fd.blocks[i] == FileDescriptor.BLOCK_UNUSED)
+                file.fd.blocks[i] = newBlocks[j++];
+        }
+        file.dirtyFd = true;
+        saveBitmap();
     }
 
     /**
-     * @param fdIndex index of file descriptor or index in block [0; {@link #numOfFdInBlock} - 1]
-     * @param fdBlockBuffer this buffer contains the block with the fd
-     * @return parsed {@link FileDescriptor}
+     * Change size of an open file. Blocks past the new end of file are released,
+     * including the ones reserved with {@link #allocate(int, int)}. Growing a file leaves a hole.
+     *
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @param length new file size
      */
-    private FileDescriptor parseFdInBlock(int fdIndex, byte[] fdBlockBuffer) {
-        ByteBuffer buffer = ByteBuffer.wrap(fdBlockBuffer);
-        buffer.position(getPositionInBlock(fdIndex));
-        return new FileDescriptor(buffer.getInt(), new int[] {
-                buffer.getInt(),
-                buffer.getInt(),
-                buffer.getInt()
-        });
+    public void truncate(int openFile, int length) throws FakeIOException {
+        truncate(getOpenFileForChange(openFile), length);
     }
 
-    /**
-     * Writes the data stored in a {@link FileDescriptor} into the proper I/O block
-     * @param fdIndex the file descriptor number
-     * @param fd the parsed file descriptor
-     * @param fdBlockBuffer IO block retrieved by {@link #getBlockWithFd(int)}
-     */
-    private void writeFdToBlock(int fdIndex, FileDescriptor fd, byte[] fdBlockBuffer) {
-        ByteBuffer buffer = ByteBuffer.wrap(fdBlockBuffer);
-        buffer.position(getPositionInBlock(fdIndex));
+    private void truncate(OpenFile file, int length) throws FakeIOException {
+        if (length < 0 || length > maxFileSize)
+            throw new FakeIOException("Can't truncate to " + length + " bytes, max file size is " + maxFileSize);
 
-        buffer.putInt(fd.fileSize);
-        for (int blockPointer : fd.blocks)
-            buffer.putInt(blockPointer);
+        if (file.fd.inlineData != null) {
+            if (length <= FileDescriptor.INLINE_CAPACITY) {
+                if (length < file.fd.fileSize)
+                    Arrays.fill(file.fd.inlineData, length, FileDescriptor.INLINE_CAPACITY, (byte) 0);
+                file.fd.fileSize = length;
+                file.dirtyFd = true;
+                return;
+            }
+            moveInlineDataToBlock(file);
+            saveBitmap();
+        }
+        if (file.fd.compressed) {
+            clearCluster(file, length, maxFileSize, length);
+            return;
+        }
+
+        int keptBlocks = MathUtils.divideCeil(length, ioSystem.blockSize);
+        int lastBlock = keptBlocks - 1;
+        //Rest of the last block should read as zeros if the file grows again
+        if (length < file.fd.fileSize && length % ioSystem.blockSize != 0
+                && file.fd.blocks[lastBlock] != FileDescriptor.BLOCK_UNUSED) {
+            if (file.bufferBlockNum != lastBlock)
+                swapBuffer(file, lastBlock);
+            unshareBlock(file, lastBlock);
+            Arrays.fill(file.buffer, length % ioSystem.blockSize, ioSystem.blockSize, (byte) 0);
+            file.dirtyBuffer = true;
+        }
+
+        for (int i = keptBlocks; i < FileDescriptor.BLOCK_COUNT; i++) {
+            if (file.fd.blocks[i] == FileDescriptor.BLOCK_UNUSED)
+                continue;
+            freeDataBlock(file.fd.blocks[i]);
+            file.fd.blocks[i] = FileDescriptor.BLOCK_UNUSED;
+            if (file.bufferBlockNum == i) {
+                file.bufferBlockNum = OpenFile.BUFFER_BLOCK_NUM_NONE;
+                file.dirtyBuffer = false;
+            }
+        }
+        file.fd.fileSize = length;
+        file.dirtyFd = true;
+        if (bitmap != savedBitmap)
+            saveBitmap();
     }
 
     /**
-     * Allocate block for file data
+     * Deallocate data blocks in a range of an open file, the range reads as zeros afterwards.
+     * Blocks which are only partially in the range are filled with zeros instead. File size does not change.
      *
-     * @param bitmap reference to bitmap (should be a single Long)
-     * @return pointer to block
-     * @throws FakeIOException there is no more room in the I/O system
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @param offset start of the range
+     * @param length length of the range in bytes
      */
-    private int allocateDataBlock(long[] bitmap) throws FakeIOException {
-        int freeBlock = MathUtils.findZeroByte(bitmap[0]);
-        if (freeBlock < 0 || reservedBlocks + freeBlock >= ioSystem.blockCount)
-            throw new FakeIOException("Out of space");
-        bitmap[0] = MathUtils.setOneByte(bitmap[0], freeBlock);
-        return reservedBlocks + freeBlock;
+    public void punchHole(int openFile, int offset, int length) throws FakeIOException {
+        punchHole(getOpenFileForChange(openFile), offset, length);
     }
 
-    /**
-     * Flush cached data into I/O system.
+    private void punchHole(OpenFile file, int offset, int length) throws FakeIOException {
+        if (offset < 0 || length < 0)
+            throw new FakeIOException("Invalid range: offset " + offset + ", length " + length);
+
+        int end = (int) Math.min((long) offset + length, file.fd.fileSize);
+        if (offset >= end)
+            return;
+        if (file.fd.inlineData != null) {
+            Arrays.fill(file.fd.inlineData, offset, end, (byte) 0);
+            file.dirtyFd = true;
+            return;
+        }
+        if (file.fd.compressed) {
+            clearCluster(file, offset, end, file.fd.fileSize);
+            return;
+        }
+
+        //Data past end of file does not matter, so the last block can be freed completely
+        int rangeEnd = end == file.fd.fileSize ? maxFileSize : end;
+
+        for (int blockNum = offset / ioSystem.blockSize; blockNum <= (end - 1) / ioSystem.blockSize; blockNum++) {
+            if (file.fd.blocks[blockNum] == FileDescriptor.BLOCK_UNUSED)
+                continue;
+
+            int blockStart = blockNum * ioSystem.blockSize;
+            int from = Math.max(offset, blockStart) - blockStart;
+            int to = Math.min(rangeEnd, blockStart + ioSystem.blockSize) - blockStart;
+            if (from == 0 && to == ioSystem.blockSize) {
+                freeDataBlock(file.fd.blocks[blockNum]);
+                file.fd.blocks[blockNum] = FileDescriptor.BLOCK_UNUSED;
+                file.dirtyFd = true;
+                if (file.bufferBlockNum == blockNum) {
+                    file.bufferBlockNum = OpenFile.BUFFER_BLOCK_NUM_NONE;
+                    file.dirtyBuffer = false;
+                }
+            } else {
+                if (file.bufferBlockNum != blockNum)
+                    swapBuffer(file, blockNum);
+                unshareBlock(file, blockNum);
+                Arrays.fill(file.buffer, from, to, (byte) 0);
+                file.dirtyBuffer = true;
+            }
+        }
+        if (bitmap != savedBitmap)
+            saveBitmap();
+    }
+
+    /**
+     * @param fdIndex index of file descriptor
+     * @return index of block with file descriptor
+     */
+    private int getBlockWithFd(int fdIndex) {
+        return fdBlockMap[fdIndex / numOfFdInBlock];
+    }
+
+    /**
+     * Take a data block for a group of FDs which has no block yet, every FD in it is free
+     * @param group index in {@link #fdBlockMap}
+     * @throws FakeIOException there is no more room in the I/O system
+     */
+    private void allocateFdBlock(int group) throws FakeIOException {
+        long[] bitmapRef = new long[]{bitmap};
+        int dataBlocks = Math.min(ioSystem.blockCount - FIRST_DATA_BLOCK, MAX_DATA_BLOCKS);
+        int goal = allocationPolicy.getFdBlockGoal(group, FIRST_DATA_BLOCK, FIRST_DATA_BLOCK + dataBlocks);
+        int block = allocateDataBlock(bitmapRef, goal);
+        bitmap = bitmapRef[0];
+        //Only the map points to blocks with FDs
+        refCounts[block - FIRST_DATA_BLOCK] = 0;
+        fdBlockMap[group] = block;
+
+        writeFdBlock(block, new byte[ioSystem.blockSize]);
+        saveBitmap();
+    }
+
+    /**
+     * Give the block with an FD back to data blocks, if every FD in it is free.
+     * The bitmap still has to be saved afterwards
+     * @param fdIndex index of file descriptor
+     */
+    private void freeFdBlockIfUnused(int fdIndex) {
+        int group = fdIndex / numOfFdInBlock;
+        //Root FD is in group 0
+        if (group == 0)
+            return;
+
+        int block = fdBlockMap[group];
+        byte[] buffer = new byte[ioSystem.blockSize];
+        readFdBlock(block, buffer);
+        for (int j = 0; j < numOfFdInBlock; j++) {
+            if (!parseFdInBlock(j, buffer).isUnused())
+                return;
+        }
+
+        fdBlockMap[group] = NO_FD_BLOCK;
+        bitmap = MathUtils.setZeroByte(bitmap, block - FIRST_DATA_BLOCK);
+        //The block may be used for file data before the batch is done
+        if (batchFdBlocks != null)
+            batchFdBlocks.remove(block);
+    }
+
+    /**
+     * @return true if the block contains file descriptors
+     */
+    private boolean isSharedBlock(int block) {
+        return refCounts[block - FIRST_DATA_BLOCK] > 1;
+    }
+
+    private boolean isFdBlock(int block) {
+        for (int fdBlock : fdBlockMap) {
+            if (fdBlock == block)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param fdIndex index of file descriptor
+     * @return position of the fd in block
+     */
+    private int getPositionInBlock(int fdIndex) {
+        return fdIndex * FileDescriptor.BYTES % ioSystem.blockSize;
+    }
+
+    /**
+     * @param fdIndex index of file descriptor or index in block [0; {@link #numOfFdInBlock} - 1]
+     * @param fdBlockBuffer this buffer contains the block with the fd
+     * @return parsed {@link FileDescriptor}
+     */
+    private FileDescriptor parseFdInBlock(int fdIndex, byte[] fdBlockBuffer) {
+        ByteBuffer buffer = ByteBuffer.wrap(fdBlockBuffer);
+        buffer.position(getPositionInBlock(fdIndex));
+        int fileSize = buffer.getInt();
+        FileDescriptor fd;
+        if ((fileSize & FileDescriptor.INLINE_FLAG) != 0) {
+            fd = new FileDescriptor(fileSize & FileDescriptor.SIZE_MASK, new int[] {
+                    FileDescriptor.BLOCK_UNUSED,
+                    FileDescriptor.BLOCK_UNUSED,
+                    FileDescriptor.BLOCK_UNUSED
+            });
+            fd.inlineData = new byte[FileDescriptor.INLINE_CAPACITY];
+            buffer.get(fd.inlineData);
+        } else {
+            fd = new FileDescriptor(fileSize & FileDescriptor.SIZE_MASK, new int[] {
+                    buffer.getInt(),
+                    buffer.getInt(),
+                    buffer.getInt()
+            });
+        }
+        fd.compressed = (fileSize & FileDescriptor.COMPRESSED_FLAG) != 0;
+        fd.compressedBlockCount = (fileSize & FileDescriptor.COMPRESSED_BLOCKS_MASK) >>> FileDescriptor.COMPRESSED_BLOCKS_SHIFT;
+        return fd;
+    }
+
+    /**
+     * Writes the data stored in a {@link FileDescriptor} into the proper I/O block
+     * @param fdIndex the file descriptor number
+     * @param fd the parsed file descriptor
+     * @param fdBlockBuffer IO block retrieved by {@link #getBlockWithFd(int)}
+     */
+    private void writeFdToBlock(int fdIndex, FileDescriptor fd, byte[] fdBlockBuffer) {
+        cachedSizes[fdIndex] = fd.fileSize;
+        cachedBlockCounts[fdIndex] = (byte) getBlockCount(fd);
+
+        ByteBuffer buffer = ByteBuffer.wrap(fdBlockBuffer);
+        buffer.position(getPositionInBlock(fdIndex));
+
+        int flags = 0;
+        if (fd.compressed)
+            flags = FileDescriptor.COMPRESSED_FLAG | fd.compressedBlockCount << FileDescriptor.COMPRESSED_BLOCKS_SHIFT;
+        if (fd.inlineData != null) {
+            buffer.putInt(fd.fileSize | FileDescriptor.INLINE_FLAG | flags);
+            buffer.put(fd.inlineData);
+            return;
+        }
+        buffer.putInt(fd.fileSize | flags);
+        for (int blockPointer : fd.blocks)
+            buffer.putInt(blockPointer);
+    }
+
+    /**
+     * Allocate block for file data, the block is picked by {@link #allocationPolicy}
+     *
+     * @param bitmap reference to bitmap (should be a single Long)
+     * @param goal pointer to block where the new block would be best, see {@link #getAllocationGoal(OpenFile, int)}
+     * @return pointer to block
+     * @throws FakeIOException there is no more room in the I/O system
+     */
+    private int allocateDataBlock(long[] bitmap, int goal) throws FakeIOException {
+        long currentBitmap = bitmap[0];
+        int dataBlocks = Math.min(ioSystem.blockCount - FIRST_DATA_BLOCK, MAX_DATA_BLOCKS);
+        int freeBlock = allocationPolicy.chooseBlock(
+                block -> MathUtils.isZeroByte(currentBitmap, block - FIRST_DATA_BLOCK),
+                FIRST_DATA_BLOCK,
+                FIRST_DATA_BLOCK + dataBlocks,
+                goal
+        );
+        if (freeBlock < 0)
+            throw new FakeIOException("Out of space");
+        bitmap[0] = MathUtils.setOneByte(currentBitmap, freeBlock - FIRST_DATA_BLOCK);
+        refCounts[freeBlock - FIRST_DATA_BLOCK] = 1;
+        return freeBlock;
+    }
+
+    /**
+     * @param blockNum relative index of the block which is about to be allocated
+     * @return pointer to block where the new block would be best:
+     * next to the closest block which the file already has, or near the FD if the file has no blocks
+     */
+    private int getAllocationGoal(OpenFile file, int blockNum) {
+        for (int i = blockNum - 1; i >= 0; i--) {
+            if (file.fd.blocks[i] != FileDescriptor.BLOCK_UNUSED)
+                return file.fd.blocks[i] + (blockNum - i);
+        }
+        for (int i = blockNum + 1; i < FileDescriptor.BLOCK_COUNT; i++) {
+            if (file.fd.blocks[i] != FileDescriptor.BLOCK_UNUSED)
+                return file.fd.blocks[i] - (i - blockNum);
+        }
+        return getBlockWithFd(file.fdIndex);
+    }
+
+    /**
+     * Choose how blocks for file data are picked, {@link AllocationPolicy#FIRST_FREE} by default.
+     * Only affects blocks allocated from now on.
+     */
+    public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+        this.allocationPolicy = allocationPolicy;
+    }
+
+    /**
+     * Find a run of free blocks for file data, without allocating them
+     *
+     * @param count amount of blocks
+     * @param goal pointer to block where the run should preferably start
+     * @return pointer to first block of the run, -1 if free space is too fragmented
+     */
+    private int findFreeRun(int count, int goal) {
+        int dataBlocks = Math.min(ioSystem.blockCount - FIRST_DATA_BLOCK, MAX_DATA_BLOCKS);
+        int freeBlock = MathUtils.findZeroRun(bitmap, count, Math.max(0, goal - FIRST_DATA_BLOCK), dataBlocks);
+        if (freeBlock < 0)
+            freeBlock = MathUtils.findZeroRun(bitmap, count, 0, dataBlocks);
+        return freeBlock < 0 ? -1 : FIRST_DATA_BLOCK + freeBlock;
+    }
+
+    /**
+     * Drop one reference to a block for file data, and mark it as free if nothing else points to it.
+     * The bitmap still has to be saved afterwards
+     * @param block pointer to block
+     */
+    private void freeDataBlock(int block) {
+        if (refCounts[block - FIRST_DATA_BLOCK] > 1) {
+            refCounts[block - FIRST_DATA_BLOCK]--;
+            return;
+        }
+        refCounts[block - FIRST_DATA_BLOCK] = 0;
+        if (deduplicationIndex != null)
+            deduplicationIndex.remove(block);
+        bitmap = MathUtils.setZeroByte(bitmap, block - FIRST_DATA_BLOCK);
+    }
+
+    /**
+     * Give a file its own block in place of a shared one, before the file modifies it.
+     * Data is not copied: the caller either has the block loaded into the buffer, or overwrites it completely.
+     * The bitmap still has to be saved afterwards
+     *
+     * @param blockNum relative index of the block in the file
+     */
+    private void unshareBlock(OpenFile file, int blockNum) throws FakeIOException {
+        int block = file.fd.blocks[blockNum];
+        if (refCounts[block - FIRST_DATA_BLOCK] <= 1)
+            return;
+
+        long[] bitmapRef = new long[]{bitmap};
+        file.fd.blocks[blockNum] = allocateDataBlock(bitmapRef, getAllocationGoal(file, blockNum));
+        bitmap = bitmapRef[0];
+        refCounts[block - FIRST_DATA_BLOCK]--;
+        file.dirtyFd = true;
+    }
+
+    /**
+     * Write one block of a file to disk. If deduplication is on and another block already has the same data,
+     * the file points to that block instead, and its own block is freed.
+     *
+     * Compressed files are stored again as a whole.
+     *
+     * @param blockNum relative index of the block in the file, it should not be shared
+     * @param offset position of the block's data in buffer
+     */
+    private void storeBlock(OpenFile file, int blockNum, byte[] buffer, int offset) {
+        if (file.fd.compressed) {
+            byte[] cluster = getCluster(file.fdIndex, file.fd).clone();
+            System.arraycopy(buffer, offset, cluster, blockNum * ioSystem.blockSize, ioSystem.blockSize);
+            storeCluster(file, cluster);
+            return;
+        }
+
+        int block = file.fd.blocks[blockNum];
+        if (deduplicationIndex == null) {
+            ioSystem.writeBlocks(new int[]{block}, 1, buffer, offset);
+            return;
+        }
+
+        int duplicate = deduplicationIndex.find(buffer, offset);
+        if (duplicate == block)
+            return;
+        deduplicationIndex.remove(block);
+        //Another open file is about to overwrite the duplicate in place, so it can't be shared
+        if (duplicate >= 0 && !isBufferedAndDirty(duplicate) && !isMappedForChange(duplicate)) {
+            refCounts[duplicate - FIRST_DATA_BLOCK]++;
+            freeDataBlock(block);
+            saveBitmap();
+            file.fd.blocks[blockNum] = duplicate;
+            file.dirtyFd = true;
+            return;
+        }
+        ioSystem.writeBlocks(new int[]{block}, 1, buffer, offset);
+        deduplicationIndex.add(block, buffer, offset);
+    }
+
+    /**
+     * @return true if an open file has the block in its buffer with changes that were not written back yet
+     */
+    private boolean isBufferedAndDirty(int block) {
+        for (int i = 0; i < oftTable.size; i++) {
+            OpenFile file = oftTable.getOpenFile(i);
+            if (file != null && file.dirtyBuffer && file.fd.blocks[file.bufferBlockNum] == block)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a read-write view of an open file changes the block right on the device
+     */
+    private boolean isMappedForChange(int block) {
+        for (int i = 0; i < oftTable.size; i++) {
+            OpenFile file = oftTable.getOpenFile(i);
+            if (file == null)
+                continue;
+            for (MappedFile mapping : file.mappings) {
+                for (int blockNum = 0; blockNum < FileDescriptor.BLOCK_COUNT; blockNum++) {
+                    if (file.fd.blocks[blockNum] == block && mapping.isChangedInPlace(blockNum))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Turn block deduplication on or off, it is off by default.
+     * While it is on, every data block is hashed when it is written back, and if another block already has
+     * the same data, the two files share one block. Blocks which are already on disk are indexed when
+     * deduplication is turned on, but are not merged with each other.
+     * Blocks stay shared after deduplication is turned off.
+     */
+    public void setDeduplication(boolean enabled) {
+        if (!enabled) {
+            deduplicationIndex = null;
+            return;
+        }
+        if (deduplicationIndex != null)
+            return;
+
+        deduplicationIndex = new DeduplicationIndex(ioSystem);
+        byte[] data = new byte[ioSystem.blockSize];
+        for (FileRef file : getAllFiles()) {
+            //Blocks of compressed files are rewritten in place, so they should never be shared
+            if (file.fd.compressed)
+                continue;
+            for (int block : file.fd.blocks) {
+                if (block == FileDescriptor.BLOCK_UNUSED)
+                    continue;
+                ioSystem.readBlock(block, data);
+                deduplicationIndex.add(block, data, 0);
+            }
+        }
+    }
+
+    /**
+     * Collect statistics about blocks shared by deduplication, see {@link #setDeduplication(boolean)}
+     */
+    public DeduplicationStats getDeduplicationStats() {
+        int logicalBlockCount = 0;
+        int physicalBlockCount = 0;
+        int sharedBlockCount = 0;
+        for (int refCount : refCounts) {
+            logicalBlockCount += refCount;
+            if (refCount > 0)
+                physicalBlockCount++;
+            if (refCount > 1)
+                sharedBlockCount++;
+        }
+        return new DeduplicationStats(
+                logicalBlockCount,
+                physicalBlockCount,
+                sharedBlockCount,
+                deduplicationIndex == null ? 0 : deduplicationIndex.size(),
+                deduplicationIndex == null ? 0 : deduplicationIndex.getMemoryUsage()
+        );
+    }
+
+    /**
+     * Map contents of an open file into memory, see {@link MappedFile}.
+     * Views stay usable until they are unmapped or the file is closed.
+     *
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     */
+    public MappedFile map(int openFile, MappedFile.Mode mode) throws FakeIOException {
+        OpenFile file = oftTable.getOpenFileSafe(openFile);
+        MappedFile mapping = new MappedFile(this, file, mode, file.fd.fileSize, ioSystem.blockSize);
+        file.mappings.add(mapping);
+        return mapping;
+    }
+
+    /**
+     * Get an open file which is about to be changed. Views of the file are written back and forget their blocks,
+     * so that they don't overwrite the change later, and see it once they read the blocks again
+     */
+    private OpenFile getOpenFileForChange(int openFile) throws FakeIOException {
+        OpenFile file = oftTable.getOpenFileSafe(openFile);
+        for (MappedFile mapping : file.mappings) {
+            mapping.force();
+            mapping.invalidateAll();
+        }
+        return file;
+    }
+
+    /**
+     * Read one block of a file for a view, zeros past end of file
+     *
+     * @param position start of the block in file
+     */
+    void readMappedBlock(OpenFile file, int position, byte[] block) {
+        int count = read(file, position, block, 0, block.length);
+        Arrays.fill(block, Math.max(count, 0), block.length, (byte) 0);
+    }
+
+    /**
+     * View of one block of a file right in the memory of the device, see {@link IOSystem#getBlockView(int)}.
+     * If the buffer of the open file has changes to the block, they are written back first.
+     *
+     * @param end position in file where the part of the block covered by the view ends
+     * @param writable the view will be changed, so the block should only belong to this file
+     * @return null if the block has to be copied instead: the device has no views, the file is inline or compressed,
+     * the block is a hole, the file is shorter than the view, or the view is writable and the block is shared
+     */
+    ByteBuffer getMappedBlockView(OpenFile file, int blockNum, int end, boolean writable) {
+        if (file.fd.inlineData != null || file.fd.compressed || file.fd.fileSize < end)
+            return null;
+        if (file.dirtyBuffer && file.bufferBlockNum == blockNum)
+            sync(file);
+        int block = file.fd.blocks[blockNum];
+        if (block == FileDescriptor.BLOCK_UNUSED || (writable && refCounts[block - FIRST_DATA_BLOCK] > 1))
+            return null;
+
+        return ioSystem.getBlockView(block);
+    }
+
+    /**
+     * Forget the buffer of an open file unless it has changes, because a view may have changed the block in place
+     */
+    void dropCleanBuffer(OpenFile file) {
+        if (!file.dirtyBuffer)
+            file.bufferBlockNum = OpenFile.BUFFER_BLOCK_NUM_NONE;
+    }
+
+    /**
+     * Write one block changed through a view, other views of the file read the block again
+     *
+     * @param position start of the block in file
+     */
+    void writeMappedBlock(MappedFile mapping, OpenFile file, int position, byte[] block, int count)
+            throws FakeIOException {
+        int oldPosition = file.position;
+        seek(file, position);
+        try {
+            write(file, block, 0, count);
+        } finally {
+            file.position = oldPosition;
+        }
+        for (MappedFile other : file.mappings) {
+            if (other != mapping)
+                other.invalidate(position / ioSystem.blockSize);
+        }
+    }
+
+    /**
+     * Turn compression of an open file on or off, it is off for new files.
+     * Data of a compressed file is compressed as a whole whenever its buffer is written back,
+     * and stored in as few blocks as possible. Data which does not compress is stored as is.
+     * Existing data is converted right away.
+     *
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     */
+    public void setCompression(int openFile, boolean enabled) throws FakeIOException {
+        OpenFile file = getOpenFileForChange(openFile);
+        if (file.fd.compressed == enabled)
+            return;
+        if (file.fd.inlineData != null) {
+            file.fd.compressed = enabled;
+            file.dirtyFd = true;
+            return;
+        }
+
+        //Take out the data in the old format first
+        if (file.dirtyBuffer) {
+            storeBlock(file, file.bufferBlockNum, file.buffer, 0);
+            file.dirtyBuffer = false;
+        }
+        byte[] data = new byte[maxFileSize];
+        if (file.fd.compressed) {
+            System.arraycopy(getCluster(file.fdIndex, file.fd), 0, data, 0, maxFileSize);
+        } else {
+            readBlocksDirect(file.fd, 0, FileDescriptor.BLOCK_COUNT, data, 0);
+            Arrays.fill(data, file.fd.fileSize, maxFileSize, (byte) 0);
+        }
+
+        //Blocks of the file are freed before the new ones are allocated, so make sure that there are enough
+        int fileBlocks = MathUtils.divideCeil(file.fd.fileSize, ioSystem.blockSize);
+        int neededBlocks = 0;
+        for (int i = 0; i < fileBlocks; i++) {
+            if (enabled || !isZero(data, i * ioSystem.blockSize, ioSystem.blockSize))
+                neededBlocks++;
+        }
+        int availableBlocks = Math.min(ioSystem.blockCount - FIRST_DATA_BLOCK, MAX_DATA_BLOCKS) - Long.bitCount(bitmap);
+        for (int block : file.fd.blocks) {
+            if (block != FileDescriptor.BLOCK_UNUSED && refCounts[block - FIRST_DATA_BLOCK] == 1)
+                availableBlocks++;
+        }
+        if (neededBlocks > availableBlocks)
+            throw new FakeIOException("Out of space");
+
+        for (int i = 0; i < FileDescriptor.BLOCK_COUNT; i++) {
+            if (file.fd.blocks[i] != FileDescriptor.BLOCK_UNUSED)
+                freeDataBlock(file.fd.blocks[i]);
+            file.fd.blocks[i] = FileDescriptor.BLOCK_UNUSED;
+        }
+        file.bufferBlockNum = OpenFile.BUFFER_BLOCK_NUM_NONE;
+        file.fd.compressed = enabled;
+        file.fd.compressedBlockCount = 0;
+        file.dirtyFd = true;
+        clusterCache.remove(file.fdIndex);
+
+        if (enabled) {
+            reserveClusterBlocks(file, file.fd.fileSize);
+            storeCluster(file, data);
+        } else {
+            writeBlocksDirect(file, 0, fileBlocks, data, 0);
+        }
+        if (bitmap != savedBitmap)
+            saveBitmap();
+    }
+
+    /**
+     * @return decompressed data of a compressed file, zeros past end of file.
+     * The array is shared with {@link #clusterCache}, so it should not be modified
+     */
+    private byte[] getCluster(int fdIndex, FileDescriptor fd) {
+        byte[] cluster = clusterCache.get(fdIndex);
+        if (cluster != null)
+            return cluster;
+
+        cluster = new byte[maxFileSize];
+        if (fd.compressedBlockCount == 0) {
+            //Stored as is
+            readBlocksDirect(fd, 0, MathUtils.divideCeil(fd.fileSize, ioSystem.blockSize), cluster, 0);
+            Arrays.fill(cluster, fd.fileSize, maxFileSize, (byte) 0);
+        } else {
+            byte[] data = new byte[fd.compressedBlockCount * ioSystem.blockSize];
+            ioSystem.readBlocks(fd.blocks, fd.compressedBlockCount, data, 0);
+            decompress(data, cluster);
+        }
+        clusterCache.put(fdIndex, cluster);
+        return cluster;
+    }
+
+    /**
+     * Make sure that the first blocks of a compressed file are allocated, so that its data can be stored
+     * even if it does not compress. Blocks which turn out not to be needed are freed once the data is stored.
+     * The bitmap still has to be saved afterwards
+     *
+     * @param size amount of bytes to reserve space for, counting from start of the file
+     */
+    private void reserveClusterBlocks(OpenFile file, int size) throws FakeIOException {
+        int blockCount = MathUtils.divideCeil(size, ioSystem.blockSize);
+        long[] bitmapRef = new long[]{bitmap};
+        for (int i = 0; i < blockCount; i++) {
+            if (file.fd.blocks[i] != FileDescriptor.BLOCK_UNUSED)
+                continue;
+            file.fd.blocks[i] = allocateDataBlock(bitmapRef, getAllocationGoal(file, i));
+            //Data which did not compress is read straight from the blocks, so clear old data
+            ioSystem.writeBlock(file.fd.blocks[i], new byte[ioSystem.blockSize]);
+            file.dirtyFd = true;
+        }
+        bitmap = bitmapRef[0];
+    }
+
+    /**
+     * Compress data of a file and write it to the first blocks of the file, blocks which are left over are freed.
+     * If the data does not fit into fewer blocks than the file has, it is written as is.
+     * Blocks should be reserved with {@link #reserveClusterBlocks(OpenFile, int)} beforehand.
+     *
+     * @param cluster data of the whole file, zeros past end of file; {@link #clusterCache} keeps this instance
+     */
+    private void storeCluster(OpenFile file, byte[] cluster) {
+        int fileBlocks = MathUtils.divideCeil(file.fd.fileSize, ioSystem.blockSize);
+        byte[] data = cluster;
+        int blockCount = fileBlocks;
+        int compressedBlockCount = 0;
+        if (fileBlocks > 1) {
+            byte[] compressed = new byte[(fileBlocks - 1) * ioSystem.blockSize];
+            int compressedLength = compress(cluster, file.fd.fileSize, compressed);
+            if (compressedLength >= 0) {
+                data = compressed;
+                blockCount = compressedBlockCount = MathUtils.divideCeil(compressedLength, ioSystem.blockSize);
+            }
+        }
+        ioSystem.writeBlocks(file.fd.blocks, blockCount, data, 0);
+
+        for (int i = blockCount; i < FileDescriptor.BLOCK_COUNT; i++) {
+            if (file.fd.blocks[i] == FileDescriptor.BLOCK_UNUSED)
+                continue;
+            freeDataBlock(file.fd.blocks[i]);
+            file.fd.blocks[i] = FileDescriptor.BLOCK_UNUSED;
+            file.dirtyFd = true;
+        }
+        if (bitmap != savedBitmap)
+            saveBitmap();
+        if (file.fd.compressedBlockCount != compressedBlockCount) {
+            file.fd.compressedBlockCount = compressedBlockCount;
+            file.dirtyFd = true;
+        }
+        clusterCache.put(file.fdIndex, cluster);
+    }
+
+    /**
+     * Fill a range of a compressed file with zeros, change its size, and store it again
+     */
+    private void clearCluster(OpenFile file, int from, int to, int fileSize) throws FakeIOException {
+        if (file.dirtyBuffer) {
+            storeBlock(file, file.bufferBlockNum, file.buffer, 0);
+            file.dirtyBuffer = false;
+        }
+        reserveClusterBlocks(file, fileSize);
+
+        byte[] cluster = getCluster(file.fdIndex, file.fd).clone();
+        Arrays.fill(cluster, from, to, (byte) 0);
+        file.fd.fileSize = fileSize;
+        file.dirtyFd = true;
+        file.bufferBlockNum = OpenFile.BUFFER_BLOCK_NUM_NONE;
+        storeCluster(file, cluster);
+    }
+
+    /**
+     * @param output compressed data goes here
+     * @return length of compressed data, -1 if it does not fit into output
+     */
+    private static int compress(byte[] data, int length, byte[] output) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            int compressedLength = deflater.deflate(output);
+            return deflater.finished() ? compressedLength : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param output decompressed data goes here, the rest stays as is
+     */
+    private static void decompress(byte[] data, byte[] output) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            inflater.inflate(output);
+            if (!inflater.finished())
+                throw new IllegalStateException("Compressed file data is damaged");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed file data is damaged", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Write the cached bitmap and the FD block map to the 1st block
+     */
+    private void saveBitmap() {
+        if (batchFdBlocks != null) {
+            batchBitmapDirty = true;
+            return;
+        }
+        byte[] bitmapBlock = new byte[ioSystem.blockSize];
+        ByteBuffer header = ByteBuffer.wrap(bitmapBlock);
+        header.putInt(FORMAT_MAGIC);
+        header.putLong(bitmap);
+        for (int fdBlock : fdBlockMap)
+            header.putInt(fdBlock);
+        ioSystem.writeBlock(0, bitmapBlock);
+        savedBitmap = bitmap;
+    }
+
+    /**
+     * Read a block with file descriptors, including changes made by the current batch
+     * @param block index of block with FDs
+     */
+    private void readFdBlock(int block, byte[] buffer) {
+        byte[] batchBlock = batchFdBlocks == null ? null : batchFdBlocks.get(block);
+        if (batchBlock != null)
+            System.arraycopy(batchBlock, 0, buffer, 0, ioSystem.blockSize);
+        else
+            ioSystem.readBlock(block, buffer);
+    }
+
+    /**
+     * Write a block with file descriptors, or keep it in memory until the current batch is done
+     * @param block index of block with FDs
+     */
+    private void writeFdBlock(int block, byte[] buffer) {
+        if (batchFdBlocks != null)
+            batchFdBlocks.put(block, buffer.clone());
+        else
+            ioSystem.writeBlock(block, buffer);
+    }
+
+    /**
+     * Apply every operation of a batch. Operations are independent: if one fails, the rest are still applied.
+     * Bitmap, changed FD blocks and changed directory blocks are written to disk once, after the last operation.
+     * If there is no room left for the changed directory, nothing is applied and every operation fails.
+     *
+     * @return result of each operation, in the same order
+     */
+    public List<Batch.Result> apply(Batch batch) throws FakeIOException {
+        List<Batch.Result> results = new ArrayList<>();
+        batchFdBlocks = new HashMap<>();
+        batchBitmapDirty = false;
+        batchDirectoryDirty = false;
+
+        //Nothing reaches the disk before the directory is written, so this is enough to undo the batch
+        long bitmapBefore = bitmap;
+        int[] refCountsBefore = refCounts.clone();
+        int[] fdBlockMapBefore = fdBlockMap.clone();
+        int[] cachedSizesBefore = cachedSizes.clone();
+        byte[] cachedBlockCountsBefore = cachedBlockCounts.clone();
+        List<DirectoryEntry> entriesBefore = new ArrayList<>(directory.entries);
+        //Destroyed files drop their blocks from the index
+        DeduplicationIndex deduplicationIndexBefore = deduplicationIndex == null ? null : deduplicationIndex.copy();
+        try {
+            for (Batch.Operation operation : batch.getOperations()) {
+                try {
+                    switch (operation.type) {
+                        case CREATE -> create(operation.fileName);
+                        case DESTROY -> destroy(operation.fileName);
+                    }
+                    results.add(new Batch.Result(operation, null));
+                } catch (FakeIOException e) {
+                    results.add(new Batch.Result(operation, e.getMessage()));
+                }
+            }
+
+            //Root FD and blocks allocated for the directory still go through the batch
+            if (batchDirectoryDirty) {
+                if (!hasRoomForDirectory(directory.toByteArray().length)) {
+                    bitmap = bitmapBefore;
+                    System.arraycopy(refCountsBefore, 0, refCounts, 0, refCounts.length);
+                    System.arraycopy(fdBlockMapBefore, 0, fdBlockMap, 0, fdBlockMap.length);
+                    System.arraycopy(cachedSizesBefore, 0, cachedSizes, 0, cachedSizes.length);
+                    System.arraycopy(cachedBlockCountsBefore, 0, cachedBlockCounts, 0, cachedBlockCounts.length);
+                    directory.entries.clear();
+                    directory.entries.addAll(entriesBefore);
+                    deduplicationIndex = deduplicationIndexBefore;
+                    batchFdBlocks.clear();
+                    batchBitmapDirty = false;
+
+                    for (int i = 0; i < results.size(); i++) {
+                        if (results.get(i).isSuccess())
+                            results.set(i, new Batch.Result(results.get(i).operation, "Out of space for the directory"));
+                    }
+                    return results;
+                }
+                writeDirectory();
+                sync(root);
+            }
+        } finally {
+            HashMap<Integer, byte[]> fdBlocks = batchFdBlocks;
+            batchFdBlocks = null;
+            if (batchBitmapDirty)
+                saveBitmap();
+            for (HashMap.Entry<Integer, byte[]> entry : fdBlocks.entrySet())
+                ioSystem.writeBlock(entry.getKey(), entry.getValue());
+        }
+        return results;
+    }
+
+    /**
+     * Flush cached data into I/O system.
      * This should be called before saving the emulated I/O system into real storage
      */
+    @Override
     public void sync() {
         for (int i = 0; i < oftTable.size; i++) {
             OpenFile file = oftTable.getOpenFile(i);
@@ -326,72 +1660,184 @@ public final class FileSystem {
      */
     private void sync(OpenFile file) {
         if (file.dirtyBuffer) {
-            ioSystem.writeBlock(file.fd.blocks[file.bufferBlockNum], file.buffer);
+            storeBlock(file, file.bufferBlockNum, file.buffer, 0);
             file.dirtyBuffer = false;
         }
         if (file.dirtyFd) {
             byte[] fdBlock = new byte[ioSystem.blockSize];
-            ioSystem.readBlock(getBlockWithFd(file.fdIndex), fdBlock);
+            readFdBlock(getBlockWithFd(file.fdIndex), fdBlock);
 
             writeFdToBlock(file.fdIndex, file.fd, fdBlock);
-            ioSystem.writeBlock(getBlockWithFd(file.fdIndex), fdBlock);
+            writeFdBlock(getBlockWithFd(file.fdIndex), fdBlock);
             
             file.dirtyFd = false;
         }
     }
 
     /**
-     * Find a free file descriptor in [2; k] blocks
+     * Write back open files which have been dirty for too long. If too much of the cache is dirty,
+     * files which have been dirty for the longest time are written back as well.
+     * Age is counted from the first call which saw the file dirty, so this should be called regularly,
+     * e.g. by {@link WriteBackFlusher}.
+     *
+     * @param maxAgeNanos how long a file may stay dirty
+     * @param maxDirtyRatio which part of the cache, from 0 to 1, may be dirty
+     * @return amount of open files which were written back
+     */
+    public int flushDirty(long maxAgeNanos, double maxDirtyRatio) {
+        long now = System.nanoTime();
+        List<OpenFile> dirtyFiles = new ArrayList<>();
+        long dirtyBytes = 0;
+        for (int i = 0; i < oftTable.size; i++) {
+            OpenFile file = oftTable.getOpenFile(i);
+            if (file == null)
+                continue;
+            if (!file.dirtyBuffer && !file.dirtyFd) {
+                file.dirtySince = OpenFile.DIRTY_SINCE_NONE;
+                continue;
+            }
+            if (file.dirtySince == OpenFile.DIRTY_SINCE_NONE)
+                file.dirtySince = now;
+            dirtyFiles.add(file);
+            dirtyBytes += getDirtyBytes(file);
+        }
+
+        //Oldest first
+        dirtyFiles.sort((a, b) -> Long.compare(a.dirtySince, b.dirtySince));
+        long maxDirtyBytes = (long) (maxDirtyRatio * oftTable.size * ioSystem.blockSize);
+        int flushed = 0;
+        for (OpenFile file : dirtyFiles) {
+            if (now - file.dirtySince < maxAgeNanos && dirtyBytes <= maxDirtyBytes)
+                break;
+            dirtyBytes -= getDirtyBytes(file);
+            sync(file);
+            file.dirtySince = OpenFile.DIRTY_SINCE_NONE;
+            flushed++;
+        }
+        return flushed;
+    }
+
+    private int getDirtyBytes(OpenFile file) {
+        return (file.dirtyBuffer ? ioSystem.blockSize : 0) + (file.dirtyFd ? FileDescriptor.BYTES : 0);
+    }
+
+    /**
+     * Find a free file descriptor, taking another block for FDs if every block with FDs is full
      * @return index of the free file descriptor
      * @throws FakeIOException there is no more free file descriptor
      */
     private int findFreeFd() throws FakeIOException {
-        for (int i = 1; i < reservedBlocks; i++) {
-            byte[] buffer = new byte[ioSystem.blockSize];
-            ioSystem.readBlock(i, buffer);
+        byte[] buffer = new byte[ioSystem.blockSize];
+        int emptyGroup = -1;
+        for (int i = 0; i < fdBlockMap.length; i++) {
+            if (fdBlockMap[i] == NO_FD_BLOCK) {
+                if (emptyGroup < 0)
+                    emptyGroup = i;
+                continue;
+            }
+            readFdBlock(fdBlockMap[i], buffer);
 
             for (int j = 0; j < numOfFdInBlock; j++) {
                 FileDescriptor fileDescriptor = parseFdInBlock(j, buffer);
                 if (fileDescriptor.isUnused()) {
-                    return ((i - 1) * numOfFdInBlock) + j;
+                    return (i * numOfFdInBlock) + j;
                 }
             }
         }
-        throw new FakeIOException("Can't find free file descriptor");
+        if (emptyGroup < 0)
+            throw new FakeIOException("Can't find free file descriptor");
+
+        allocateFdBlock(emptyGroup);
+        return emptyGroup * numOfFdInBlock;
     }
 
     /**
-     * Save changed entry of the directory to the file system
+     * Save changed blocks of the directory to the file system, or once the current batch is done
      * @throws FakeIOException the write function causes an error
      */
     private void saveDirectory() throws FakeIOException {
-        int entryIndex = directory.changedEntryIndex;
-        byte[] bufferEntry = directory.entryToByteArray(entryIndex);
-        seek(this.root, entryIndex * Directory.ENTRY_SIZE);
-        write(this.root, bufferEntry, bufferEntry.length);
+        if (batchFdBlocks != null)
+            batchDirectoryDirty = true;
+        else
+            writeDirectory();
+    }
+
+    private void writeDirectory() throws FakeIOException {
+        byte[] data = directory.toByteArray();
+        int offset = directory.markSaved(data);
+        if (offset == data.length)
+            return;
+        byte[] changedData = Arrays.copyOfRange(data, offset, data.length);
+        seek(this.root, offset);
+        try {
+            write(this.root, changedData, 0, changedData.length);
+        } catch (FakeIOException e) {
+            directory.markUnsaved(offset);
+            throw e;
+        }
+    }
+
+    /**
+     * @param length size of directory data about to be written
+     * @return false if the root directory can't grow to this size, because there are not enough free blocks
+     */
+    private boolean hasRoomForDirectory(int length) {
+        if (root.fd.inlineData != null && length <= FileDescriptor.INLINE_CAPACITY)
+            return true;
+        //Missing blocks have to be allocated, and shared ones copied before they are modified
+        int neededBlocks = 0;
+        for (int i = 0; i < MathUtils.divideCeil(length, ioSystem.blockSize); i++) {
+            int block = root.fd.blocks[i];
+            if (block == FileDescriptor.BLOCK_UNUSED || refCounts[block - FIRST_DATA_BLOCK] > 1)
+                neededBlocks++;
+        }
+        int dataBlocks = Math.min(ioSystem.blockCount - FIRST_DATA_BLOCK, MAX_DATA_BLOCKS);
+        return neededBlocks <= dataBlocks - Long.bitCount(bitmap);
+    }
+
+    /**
+     * Check file name and convert it to bytes, this is how names are stored in the directory
+     * @param fileName name of the file
+     * @return file name encoded as UTF-8
+     * @throws FakeIOException file name is empty or too long
+     */
+    private byte[] encodeFileName(String fileName) throws FakeIOException {
+        if (fileName == null || fileName.isEmpty())
+            throw new FakeIOException("Illegal file name");
+
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > directory.getMaxNameBytes())
+            throw new FakeIOException("Max length of file name is " + directory.getMaxNameBytes() + " bytes");
+        return name;
     }
 
     /**
      * Create new file in the file system
-     * @param fileName name of created file (max name length is {@link #MAX_FILE_NAME_SIZE})
+     * @param fileName name of created file (max name length is {@link #MAX_FILE_NAME_SIZE} bytes)
      */
+    @Override
     public void create(String fileName) throws FakeIOException {
-        // Checking length of file name
-        if (fileName.length() > MAX_FILE_NAME_SIZE) {
-            throw new FakeIOException("Max length of file name is " + MAX_FILE_NAME_SIZE);
-        }
+        byte[] name = encodeFileName(fileName);
 
         // Find a free file descriptor
         int freeFd = findFreeFd();
 
-        // Find a free entry in the directory
-        directory.createEntry(fileName, freeFd);
+        // Add an entry to the directory
+        try {
+            directory.createEntry(name, freeFd);
+        } catch (FakeIOException e) {
+            // Block for the FD may have just been taken
+            freeFdBlockIfUnused(freeFd);
+            if (bitmap != savedBitmap)
+                saveBitmap();
+            throw e;
+        }
 
         // Initialize fd
         byte[] buffer = new byte[ioSystem.blockSize];
-        ioSystem.readBlock(getBlockWithFd(freeFd), buffer);
+        readFdBlock(getBlockWithFd(freeFd), buffer);
         writeFdToBlock(freeFd, initFileDescriptor, buffer);
-        ioSystem.writeBlock(getBlockWithFd(freeFd), buffer);
+        writeFdBlock(getBlockWithFd(freeFd), buffer);
 
         // Save changes in the directory
         saveDirectory();
@@ -401,15 +1847,13 @@ public final class FileSystem {
      * Destroy a file in the file system
      * @param fileName name of the file
      */
+    @Override
     public void destroy(String fileName) throws FakeIOException {
-        // Checking length of file name
-        if (fileName.length() > MAX_FILE_NAME_SIZE) {
-            throw new FakeIOException("Illegal file name");
-        }
+        byte[] name = encodeFileName(fileName);
 
         // Find the file descriptor by searching the directory
         // Remove the directory entry
-        int entryIndex = directory.findEntry(fileName);
+        int entryIndex = directory.findEntry(name);
         int removeFdIndex = directory.entries.get(entryIndex).fdIndex;
 
         if (oftTable.isOpened(removeFdIndex)) {
@@ -422,90 +1866,397 @@ public final class FileSystem {
         // Scan the file descriptor to find the data blocks which must be freed,
         // and update the bitmap
         byte[] buffer = new byte[ioSystem.blockSize];
-        ioSystem.readBlock(getBlockWithFd(removeFdIndex), buffer);
-        FileDescriptor fileDescriptor = parseFdInBlock(getBlockWithFd(removeFdIndex), buffer);
+        readFdBlock(getBlockWithFd(removeFdIndex), buffer);
+        FileDescriptor fileDescriptor = parseFdInBlock(removeFdIndex, buffer);
 
         for (int i = 0; i < FileDescriptor.BLOCK_COUNT; i++) {
             int freeBlockIndex = fileDescriptor.blocks[i];
             if (freeBlockIndex != FileDescriptor.BLOCK_UNUSED) {
-                bitmap = MathUtils.setZeroByte(bitmap, freeBlockIndex);
+                freeDataBlock(freeBlockIndex);
             }
         }
 
+        clusterCache.remove(removeFdIndex);
+
         // Free the file descriptor
         writeFdToBlock(
                 removeFdIndex,
                 new FileDescriptor(0, new int[FileDescriptor.BLOCK_COUNT]),
                 buffer
         );
-        ioSystem.writeBlock(getBlockWithFd(removeFdIndex), buffer);
+        writeFdBlock(getBlockWithFd(removeFdIndex), buffer);
+        freeFdBlockIfUnused(removeFdIndex);
 
         // Save updated bitmap
-        MathUtils.toBytes(bitmap, buffer);
-        ioSystem.writeBlock(0, buffer);
+        saveBitmap();
 
         // Save changes in the directory
         saveDirectory();
     }
 
+    /**
+     * @return root directory and every file in it, ordered by FD index
+     */
+    private List<FileRef> getAllFiles() {
+        int[] fdIndexes = new int[directory.entries.size() + 1];
+        for (int i = 0; i < directory.entries.size(); i++)
+            fdIndexes[i + 1] = directory.entries.get(i).fdIndex;
+        Arrays.sort(fdIndexes);
+
+        List<FileRef> files = new ArrayList<>(fdIndexes.length);
+        byte[] fdBlock = new byte[ioSystem.blockSize];
+        for (int fdIndex : fdIndexes) {
+            OpenFile openFile = oftTable.findOpenFile(fdIndex);
+            if (openFile != null) {
+                files.add(new FileRef(fdIndex, openFile.fd, openFile));
+            } else {
+                readFdBlock(getBlockWithFd(fdIndex), fdBlock);
+                files.add(new FileRef(fdIndex, parseFdInBlock(fdIndex, fdBlock), null));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Write changed FD of a file to disk
+     */
+    private void saveFd(FileRef file) {
+        if (file.openFile != null) {
+            file.openFile.dirtyFd = true;
+            sync(file.openFile);
+        } else {
+            byte[] fdBlock = new byte[ioSystem.blockSize];
+            readFdBlock(getBlockWithFd(file.fdIndex), fdBlock);
+            writeFdToBlock(file.fdIndex, file.fd, fdBlock);
+            writeFdBlock(getBlockWithFd(file.fdIndex), fdBlock);
+        }
+    }
+
+    /**
+     * Collect statistics about how fragmented files and free space are
+     */
+    public FragmentationStats getFragmentationStats() {
+        int fragmentedFileCount = 0;
+        int fileExtentCount = 0;
+        List<FileRef> files = getAllFiles();
+        for (FileRef file : files) {
+            int extents = 0;
+            int previousBlock = FileDescriptor.BLOCK_UNUSED;
+            for (int block : file.fd.blocks) {
+                if (block == FileDescriptor.BLOCK_UNUSED)
+                    continue;
+                if (previousBlock == FileDescriptor.BLOCK_UNUSED || block != previousBlock + 1)
+                    extents++;
+                previousBlock = block;
+            }
+            fileExtentCount += extents;
+            if (extents > 1)
+                fragmentedFileCount++;
+        }
+
+        int freeBlockCount = 0;
+        int freeExtentCount = 0;
+        int largestFreeExtent = 0;
+        int currentFreeExtent = 0;
+        int dataBlocks = Math.min(ioSystem.blockCount - FIRST_DATA_BLOCK, MAX_DATA_BLOCKS);
+        for (int i = 0; i < dataBlocks; i++) {
+            if (MathUtils.isZeroByte(bitmap, i)) {
+                freeBlockCount++;
+                if (currentFreeExtent == 0)
+                    freeExtentCount++;
+                currentFreeExtent++;
+                largestFreeExtent = Math.max(largestFreeExtent, currentFreeExtent);
+            } else {
+                currentFreeExtent = 0;
+            }
+        }
+
+        return new FragmentationStats(
+                files.size(),
+                fragmentedFileCount,
+                fileExtentCount,
+                freeBlockCount,
+                freeExtentCount,
+                largestFreeExtent
+        );
+    }
+
+    /**
+     * Relocate some blocks towards the defragmented layout:
+     * files are placed one after another in order of FD index, blocks of each file are in order,
+     * and all free space is at the end of the data area. Blocks with FDs are not moved.
+     * Blocks shared by deduplication are not moved either, there is no single place where they belong:
+     * the other blocks are laid out around them.
+     * Open files stay usable, their cached FDs are updated as well.
+     *
+     * @param maxMoves max amount of blocks to relocate
+     * @return true if there is more work to do
+     */
+    public boolean defragmentStep(int maxMoves) throws FakeIOException {
+        //Writing back buffers can free blocks of compressed files or share blocks, so do it before looking at the blocks
+        sync();
+        List<FileRef> files = getAllFiles();
+        //Which file and relative block index each block belongs to
+        FileRef[] owners = new FileRef[ioSystem.blockCount];
+        int[] ownerBlockNums = new int[ioSystem.blockCount];
+        for (FileRef file : files) {
+            for (int i = 0; i < FileDescriptor.BLOCK_COUNT; i++) {
+                if (file.fd.blocks[i] != FileDescriptor.BLOCK_UNUSED) {
+                    owners[file.fd.blocks[i]] = file;
+                    ownerBlockNums[file.fd.blocks[i]] = i;
+                }
+            }
+        }
+
+        int moves = 0;
+        int target = FIRST_DATA_BLOCK;
+        for (FileRef file : files) {
+            for (int i = 0; i < FileDescriptor.BLOCK_COUNT; i++) {
+                int block = file.fd.blocks[i];
+                if (block == FileDescriptor.BLOCK_UNUSED || isSharedBlock(block))
+                    continue;
+                //Blocks with FDs and shared blocks stay where they are
+                while (isFdBlock(target) || isSharedBlock(target))
+                    target++;
+
+                if (block != target) {
+                    if (moves >= maxMoves)
+                        return true;
+
+                    FileRef occupant = owners[target];
+                    int occupantBlockNum = ownerBlockNums[target];
+                    //Every block before target is already in place, so a free block can only be after it
+                    int freeBlock = occupant == null ? target : findFreeRun(1, target + 1);
+                    if (freeBlock < 0) {
+                        //Out of space, exchange the two blocks instead
+                        swapBlocks(file, i, occupant, occupantBlockNum);
+                        owners[block] = occupant;
+                        ownerBlockNums[block] = occupantBlockNum;
+                    } else {
+                        if (occupant != null) {
+                            moveBlock(occupant, occupantBlockNum, freeBlock);
+                            owners[freeBlock] = occupant;
+                            ownerBlockNums[freeBlock] = occupantBlockNum;
+                        }
+                        moveBlock(file, i, target);
+                        owners[block] = null;
+                    }
+                    owners[target] = file;
+                    ownerBlockNums[target] = i;
+                    moves++;
+                }
+                target++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy a block of a file to a free block, and point the FD to the copy.
+     * Old block is only freed after the FD is saved.
+     *
+     * @param blockNum relative index of the block in the file
+     * @param to pointer to free block
+     */
+    private void moveBlock(FileRef file, int blockNum, int to) {
+        //Data on disk should be up to date before copying
+        if (file.openFile != null) {
+            sync(file.openFile);
+            invalidateMappedBlock(file.openFile, blockNum);
+        }
+
+        int from = file.fd.blocks[blockNum];
+        byte[] data = new byte[ioSystem.blockSize];
+        ioSystem.readBlock(from, data);
+
+        bitmap = MathUtils.setOneByte(bitmap, to - FIRST_DATA_BLOCK);
+        refCounts[to - FIRST_DATA_BLOCK] = 1;
+        saveBitmap();
+        ioSystem.writeBlock(to, data);
+
+        file.fd.blocks[blockNum] = to;
+        saveFd(file);
+
+        freeDataBlock(from);
+        saveBitmap();
+        //Blocks of compressed files are rewritten in place, so they should never be shared
+        if (deduplicationIndex != null && !file.fd.compressed)
+            deduplicationIndex.add(to, data, 0);
+    }
+
+    /**
+     * Views may point right at the old address of a block which is being moved, they should look it up again
+     */
+    private static void invalidateMappedBlock(OpenFile file, int blockNum) {
+        for (MappedFile mapping : file.mappings)
+            mapping.invalidate(blockNum);
+    }
+
+    /**
+     * Exchange contents of two blocks, and update both FDs.
+     * Only used when there are no free blocks to move through.
+     */
+    private void swapBlocks(FileRef first, int firstBlockNum, FileRef second, int secondBlockNum) {
+        if (first.openFile != null) {
+            sync(first.openFile);
+            invalidateMappedBlock(first.openFile, firstBlockNum);
+        }
+        if (second.openFile != null) {
+            sync(second.openFile);
+            invalidateMappedBlock(second.openFile, secondBlockNum);
+        }
+
+        int firstBlock = first.fd.blocks[firstBlockNum];
+        int secondBlock = second.fd.blocks[secondBlockNum];
+        byte[] firstData = new byte[ioSystem.blockSize];
+        byte[] secondData = new byte[ioSystem.blockSize];
+        ioSystem.readBlock(firstBlock, firstData);
+        ioSystem.readBlock(secondBlock, secondData);
+        ioSystem.writeBlock(secondBlock, firstData);
+        ioSystem.writeBlock(firstBlock, secondData);
+        //Hashes of both blocks have changed
+        if (deduplicationIndex != null) {
+            deduplicationIndex.remove(firstBlock);
+            deduplicationIndex.remove(secondBlock);
+            if (!second.fd.compressed)
+                deduplicationIndex.add(firstBlock, secondData, 0);
+            if (!first.fd.compressed)
+                deduplicationIndex.add(secondBlock, firstData, 0);
+        }
+
+        first.fd.blocks[firstBlockNum] = secondBlock;
+        second.fd.blocks[secondBlockNum] = firstBlock;
+        saveFd(first);
+        saveFd(second);
+    }
+
+    /**
+     * @return names of all files in the root directory, in sorted order
+     */
+    @Override
+    public List<String> getFileNames() {
+        List<String> names = new ArrayList<>(directory.entries.size());
+        for (DirectoryEntry entry : directory.entries)
+            names.add(entry.getName());
+        return names;
+    }
+
     /**
      * Builds a string with file names and their size
      * @return string with main info about files
      */
+    @Override
     public String listFiles() {
-        //Flush cache before listing files
-        sync();
-
         StringBuilder sb = new StringBuilder();
 
-        for (int i = 0; i < this.directory.entries.size(); i++) {
-            DirectoryEntry entry = this.directory.entries.get(i);
-            if (!Directory.isUnused(entry)) {
-                byte[] fdBlock = new byte[ioSystem.blockSize];
-                ioSystem.readBlock(getBlockWithFd(entry.fdIndex), fdBlock);
-                FileDescriptor currDescriptor = parseFdInBlock(entry.fdIndex, fdBlock);
-                sb.append(entry.name);
-                sb.append(' ');
-                sb.append(currDescriptor.fileSize);
-                if (i != directory.entries.size() - 1)
-                    sb.append(", ");
-            }
+        Iterator<FileInfo> iterator = iterateFiles();
+        while (iterator.hasNext()) {
+            FileInfo file = iterator.next();
+            sb.append(file.name);
+            sb.append(' ');
+            sb.append(file.size);
+            if (iterator.hasNext())
+                sb.append(", ");
         }
 
         return sb.toString();
     }
 
+    /**
+     * Iterate over files in the root directory, in sorted order, without reading the whole listing into memory.
+     * Attributes are cached, so usually no FD blocks have to be read.
+     * Files should not be created or destroyed while iterating.
+     */
+    public Iterator<FileInfo> iterateFiles() {
+        Iterator<DirectoryEntry> entries = directory.entries.iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public FileInfo next() {
+                return getFileInfo(entries.next());
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #iterateFiles()}, as a stream
+     */
+    public Stream<FileInfo> streamFiles() {
+        return StreamSupport.stream(
+                Spliterators.spliterator(iterateFiles(), directory.entries.size(), Spliterator.ORDERED | Spliterator.NONNULL),
+                false
+        );
+    }
+
+    private FileInfo getFileInfo(DirectoryEntry entry) {
+        //Cached FDs of open files may be newer than the ones on disk
+        OpenFile openFile = oftTable.findOpenFile(entry.fdIndex);
+        if (openFile != null)
+            return new FileInfo(entry.getName(), openFile.fd.fileSize, getBlockCount(openFile.fd));
+
+        if (cachedSizes[entry.fdIndex] == ATTRIBUTES_UNKNOWN) {
+            //Cache every FD in the block at once
+            byte[] fdBlock = new byte[ioSystem.blockSize];
+            readFdBlock(getBlockWithFd(entry.fdIndex), fdBlock);
+            int firstFdIndex = entry.fdIndex - entry.fdIndex % numOfFdInBlock;
+            for (int j = 0; j < numOfFdInBlock; j++) {
+                FileDescriptor fd = parseFdInBlock(j, fdBlock);
+                int fdIndex = firstFdIndex + j;
+                cachedSizes[fdIndex] = fd.fileSize;
+                cachedBlockCounts[fdIndex] = (byte) getBlockCount(fd);
+            }
+        }
+        return new FileInfo(entry.getName(), cachedSizes[entry.fdIndex], cachedBlockCounts[entry.fdIndex]);
+    }
+
+    /**
+     * @return amount of data blocks allocated to the file
+     */
+    private static int getBlockCount(FileDescriptor fd) {
+        int count = 0;
+        for (int block : fd.blocks) {
+            if (block != FileDescriptor.BLOCK_UNUSED)
+                count++;
+        }
+        return count;
+    }
+
     /**
      * Open an existing file for read/write operations.
      * @param fileName name of the file in file system
      * @return index of opened file, usable for {@link #read(int, byte[], int)} and {@link #write(int, byte[], int)}
      */
+    @Override
     public int openFile(String fileName) throws FakeIOException {
-        if (fileName == null || fileName.length() > MAX_FILE_NAME_SIZE) {
-            throw new FakeIOException("Illegal file name");
-        }
+        int entryIndex = directory.search(encodeFileName(fileName));
+        if (entryIndex < 0)
+            throw new FakeIOException("File does not exist: " + fileName);
 
-        for (DirectoryEntry entry : directory.entries) {
-            if (fileName.equals(entry.name)) {
-                int fdIndex = entry.fdIndex;
-                
-                byte[] fdBlock = new byte[ioSystem.blockSize];
-                ioSystem.readBlock(getBlockWithFd(fdIndex), fdBlock);
-                FileDescriptor fd = parseFdInBlock(fdIndex, fdBlock);
-                
-                return oftTable.allocate(fdIndex, fd);
-            }
-        }
+        int fdIndex = directory.entries.get(entryIndex).fdIndex;
+
+        byte[] fdBlock = new byte[ioSystem.blockSize];
+        readFdBlock(getBlockWithFd(fdIndex), fdBlock);
+        FileDescriptor fd = parseFdInBlock(fdIndex, fdBlock);
 
-        throw new FakeIOException("File does not exist: " + fileName);
+        return oftTable.allocate(fdIndex, fd);
     }
 
     /**
      * Closes opened file.
      * @param openFile index of open file, obtainable via {@link #openFile(String)}
      */
+    @Override
     public void closeFile(int openFile) throws FakeIOException {
-        closeFile(oftTable.getOpenFileSafe(openFile));
+        OpenFile file = oftTable.getOpenFileSafe(openFile);
+        for (MappedFile mapping : file.mappings) {
+            mapping.force();
+            mapping.close();
+        }
+        closeFile(file);
     }
     
     private void closeFile(OpenFile file) {
@@ -513,11 +2264,85 @@ public final class FileSystem {
         oftTable.deallocate(file);
     }
 
+    /**
+     * @return true if any file other than the root directory is open
+     */
+    @Override
+    public boolean hasOpenFiles() {
+        for (int i = 0; i < oftTable.size; i++) {
+            OpenFile file = oftTable.getOpenFile(i);
+            if (file != null && file != root)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return approximate amount of memory used by cached buffers and directory contents, in bytes
+     */
+    @Override
+    public long getMemoryUsage() {
+        long usage = 0;
+        for (int i = 0; i < oftTable.size; i++) {
+            if (oftTable.getOpenFile(i) != null)
+                usage += ioSystem.blockSize;
+        }
+        for (DirectoryEntry entry : directory.entries)
+            usage += entry.name.length + Integer.BYTES;
+        return usage + clusterCache.getMemoryUsage();
+    }
+
+    /**
+     * @return true if a file with this name exists in the root directory
+     */
+    @Override
+    public boolean exists(String fileName) {
+        if (fileName == null || fileName.isEmpty())
+            return false;
+        return directory.search(fileName.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /**
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @return current size of the file, including changes which are not synced yet
+     */
+    @Override
+    public int getFileSize(int openFile) throws FakeIOException {
+        return oftTable.getOpenFileSafe(openFile).fd.fileSize;
+    }
+
+    /**
+     * @param fileName name of the file, it does not have to be open
+     * @return current size of the file, including changes which are not synced yet
+     */
+    @Override
+    public int getFileSize(String fileName) throws FakeIOException {
+        int entryIndex = directory.findEntry(encodeFileName(fileName));
+        return getFileInfo(directory.entries.get(entryIndex)).size;
+    }
+
+    /**
+     * @return true if positional reads, {@link #exists(String)}, {@link #getFileNames()} and {@link #getFileSize(int)}
+     * may be called from several threads at once, which depends on the device
+     */
+    public boolean canReadConcurrently() {
+        return ioSystem.canReadConcurrently();
+    }
+
+    /**
+     * @return max size of a single file in bytes
+     */
+    @Override
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    @Override
     public String getFileName(int openFile) throws FakeIOException {
         int fdIndex = oftTable.getOpenFileSafe(openFile).fdIndex;
         for (DirectoryEntry entry : directory.entries) {
             if (entry.fdIndex == fdIndex) {
-                return entry.name;
+                return entry.getName();
             }
         }
         throw new FakeIOException("File is open but not not found in the root directory? Something is very wrong.");
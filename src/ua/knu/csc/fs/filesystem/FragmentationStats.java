@@ -0,0 +1,46 @@
+package ua.knu.csc.fs.filesystem;
+
+/**
+ * Snapshot of how fragmented files and free space are, see {@link FileSystem#getFragmentationStats()}.
+ * An extent is a run of blocks with consecutive addresses.
+ */
+public final class FragmentationStats {
+    public final int fileCount;
+    /**
+     * Files which are made of more than one extent
+     */
+    public final int fragmentedFileCount;
+    public final int fileExtentCount;
+    public final int freeBlockCount;
+    public final int freeExtentCount;
+    public final int largestFreeExtent;
+
+    FragmentationStats(
+            int fileCount,
+            int fragmentedFileCount,
+            int fileExtentCount,
+            int freeBlockCount,
+            int freeExtentCount,
+            int largestFreeExtent
+    ) {
+        this.fileCount = fileCount;
+        this.fragmentedFileCount = fragmentedFileCount;
+        this.fileExtentCount = fileExtentCount;
+        this.freeBlockCount = freeBlockCount;
+        this.freeExtentCount = freeExtentCount;
+        this.largestFreeExtent = largestFreeExtent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d of %d files fragmented, %d file extents, %d free blocks in %d extents (largest is %d)",
+                fragmentedFileCount,
+                fileCount,
+                fileExtentCount,
+                freeBlockCount,
+                freeExtentCount,
+                largestFreeExtent
+        );
+    }
+}
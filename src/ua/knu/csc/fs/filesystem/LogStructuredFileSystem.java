@@ -0,0 +1,935 @@
+package ua.knu.csc.fs.filesystem;
+
+import ua.knu.csc.fs.IOSystem;
+import ua.knu.csc.fs.MathUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Log-structured alternative to {@link FileSystem} for write-heavy workloads.
+ * Basic file operations have the same signatures and behave the same way, files have the same size limit.
+ * <p>
+ * Nothing is updated in place. File data, FDs and the inode map are appended to a log, which is collected
+ * in memory and written to the device a segment at a time, so writes are mostly sequential.
+ * Block 0 holds the checkpoint, the rest of the device is split into segments of {@link #segmentBlocks} blocks.
+ * Only a device whose block 0 is all zeros is formatted.
+ * FDs are stored in groups of one block each, the inode map says where the latest copy of each group is,
+ * and the checkpoint says where the blocks of the inode map are.
+ * <p>
+ * FDs and the inode map are written at checkpoints, which happen on {@link #sync()}.
+ * If the device is saved without a sync, the volume goes back to the last checkpoint.
+ * A segment can be reused once none of its blocks are live; {@link #cleanSegments(int)}, usually called by
+ * {@link SegmentCleaner}, copies live blocks out of mostly dead segments. Which blocks are live is not stored,
+ * it is worked out from the inode map when the volume is loaded.
+ */
+public final class LogStructuredFileSystem implements BasicFileSystem {
+    private static final int CHECKPOINT_MAGIC = 0x4C465331;
+    /**
+     * Magic, segment size, amount of inode map blocks
+     */
+    private static final int CHECKPOINT_HEADER_INTS = 3;
+    private static final int CHECKPOINT_BLOCK = 0;
+
+    //size of Opened File Table
+    private static final int OFT_SIZE = 3;
+    private static final int DEFAULT_SEGMENT_BLOCKS = 8;
+    private static final int NO_SEGMENT = -1;
+    private static final int NO_ADDRESS = -1;
+
+    /**
+     * What each block of the log holds
+     */
+    private static final byte BLOCK_DEAD = 0;
+    private static final byte BLOCK_DATA = 1;
+    private static final byte BLOCK_INODES = 2;
+    private static final byte BLOCK_INODE_MAP = 3;
+
+    public static final int END_OF_FILE = FileSystem.END_OF_FILE;
+    public static final int MAX_FILE_NAME_SIZE = FileSystem.MAX_FILE_NAME_SIZE;
+
+    private final IOSystem ioSystem;
+    private final int segmentBlocks;
+    private final int segmentCount;
+    private final int numOfFdInBlock;
+    private final int inodeMapEntriesInBlock;
+    private final int maxFileSize;
+    /**
+     * Free blocks of the log which only the cleaner and checkpoints may use, writes fail rather than take them:
+     * room for the live blocks of one segment being cleaned, and for every FD group and inode map block
+     */
+    private final int reservedBlocks;
+
+    private final OpenFileTable oftTable;
+    private final OpenFile root;
+    private final Directory directory;
+
+    /**
+     * Every FD, indexed by FD index, null if unused. Open files share the same instances.
+     */
+    private final FileDescriptor[] inodes;
+    /**
+     * Inode map: latest address of each group of FDs
+     */
+    private final int[] inodeGroupAddresses;
+    private final boolean[] dirtyInodeGroups;
+    private final int[] inodeMapBlockAddresses;
+    private final boolean[] dirtyInodeMapBlocks;
+
+    /**
+     * What each block holds, one of BLOCK_* values, and which FD block, group or inode map block it is.
+     * A data block is owned by FD index * {@link FileDescriptor#BLOCK_COUNT} + relative index of the block.
+     */
+    private final byte[] blockTypes;
+    private final int[] blockOwners;
+    private final int[] liveBlockCounts;
+    /**
+     * Segments which can be written to. A segment whose blocks are all dead is only clean after the next checkpoint,
+     * until then the last checkpoint may still point into it.
+     */
+    private final boolean[] cleanSegments;
+    private int cleanSegmentCount;
+
+    /**
+     * Blocks of the current segment, blocks before {@link #writtenSlots} are already on the device
+     */
+    private final byte[] segmentBuffer;
+    private int currentSegment = NO_SEGMENT;
+    private int nextSlot;
+    private int writtenSlots;
+    /**
+     * Set while a checkpoint or cleaning is in progress, they may use the reserved blocks
+     */
+    private boolean maintenance;
+
+    public LogStructuredFileSystem(IOSystem ioSystem) throws FakeIOException {
+        this(ioSystem, OFT_SIZE, DEFAULT_SEGMENT_BLOCKS);
+    }
+
+    /**
+     * @param openFileTableSize size of Opened File Table, one entry is always taken by the root directory
+     * @param segmentBlocks size of a segment in blocks, a volume has to be loaded with the size it was created with
+     */
+    public LogStructuredFileSystem(IOSystem ioSystem, int openFileTableSize, int segmentBlocks) throws FakeIOException {
+        if (openFileTableSize < 2)
+            throw new IllegalArgumentException("Opened File Table should have room for at least one file");
+        if (ioSystem.blockSize % FileDescriptor.BYTES != 0)
+            throw new IllegalArgumentException("This file system only supports I/O devices where block size is a multiple of " + FileDescriptor.BYTES);
+        if (segmentBlocks <= 0)
+            throw new IllegalArgumentException("Segment size should be positive");
+
+        this.ioSystem = ioSystem;
+        this.segmentBlocks = segmentBlocks;
+        this.segmentCount = (ioSystem.blockCount - 1) / segmentBlocks;
+        this.numOfFdInBlock = ioSystem.blockSize / FileDescriptor.BYTES;
+        this.inodeMapEntriesInBlock = ioSystem.blockSize / Integer.BYTES;
+        this.maxFileSize = ioSystem.blockSize * FileDescriptor.BLOCK_COUNT;
+        this.oftTable = new OpenFileTable(openFileTableSize, ioSystem.blockSize);
+
+        // Same assumption as in FileSystem: every file, on average, takes up 2 data blocks.
+        // Addresses of all inode map blocks have to fit into the checkpoint.
+        final int AVG_FILE_BLOCKS = 2;
+        int inodeGroupCount = Math.max(1, Math.min(
+                MathUtils.divideCeil(segmentCount * segmentBlocks / AVG_FILE_BLOCKS, numOfFdInBlock),
+                (inodeMapEntriesInBlock - CHECKPOINT_HEADER_INTS) * inodeMapEntriesInBlock
+        ));
+        int inodeMapBlockCount = MathUtils.divideCeil(inodeGroupCount, inodeMapEntriesInBlock);
+        this.reservedBlocks = segmentBlocks + inodeGroupCount + inodeMapBlockCount;
+        if ((segmentCount - 1) * segmentBlocks <= reservedBlocks)
+            throw new IllegalArgumentException("Device is too small for segments of " + segmentBlocks + " blocks");
+
+        System.err.printf(
+                "Created log-structured FS with %d segments of %d blocks, %d FDs\n",
+                segmentCount,
+                segmentBlocks,
+                inodeGroupCount * numOfFdInBlock
+        );
+
+        this.inodes = new FileDescriptor[inodeGroupCount * numOfFdInBlock];
+        this.inodeGroupAddresses = new int[inodeGroupCount];
+        this.dirtyInodeGroups = new boolean[inodeGroupCount];
+        this.inodeMapBlockAddresses = new int[inodeMapBlockCount];
+        this.dirtyInodeMapBlocks = new boolean[inodeMapBlockCount];
+        this.blockTypes = new byte[ioSystem.blockCount];
+        this.blockOwners = new int[ioSystem.blockCount];
+        this.liveBlockCounts = new int[segmentCount];
+        this.cleanSegments = new boolean[segmentCount];
+        this.segmentBuffer = new byte[segmentBlocks * ioSystem.blockSize];
+        this.nextSlot = segmentBlocks;
+
+        byte[] buffer = new byte[ioSystem.blockSize];
+        ioSystem.readBlock(CHECKPOINT_BLOCK, buffer);
+        ByteBuffer checkpoint = ByteBuffer.wrap(buffer);
+        if (checkpoint.getInt() != CHECKPOINT_MAGIC) {
+            for (byte b : buffer) {
+                if (b != 0)
+                    throw new FakeIOException("Device has data on it, but not a log-structured file system");
+            }
+            // New volume, only has the root directory
+            Arrays.fill(inodeGroupAddresses, NO_ADDRESS);
+            Arrays.fill(inodeMapBlockAddresses, NO_ADDRESS);
+            Arrays.fill(dirtyInodeMapBlocks, true);
+            Arrays.fill(cleanSegments, true);
+            cleanSegmentCount = segmentCount;
+            inodes[0] = newInode();
+            dirtyInodeGroups[0] = true;
+
+            root = oftTable.getOpenFile(oftTable.allocate(0, inodes[0]));
+            directory = new Directory(ioSystem.blockSize, maxFileSize);
+            checkpoint();
+        } else {
+            if (checkpoint.getInt() != segmentBlocks || checkpoint.getInt() != inodeMapBlockCount)
+                throw new FakeIOException("Volume was created with a different segment size");
+            loadInodeMap(checkpoint);
+            if (inodes[0] == null)
+                throw new FakeIOException("Root directory is missing");
+
+            root = oftTable.getOpenFile(oftTable.allocate(0, inodes[0]));
+            byte[] dirBuffer = new byte[inodes[0].fileSize];
+            read(root, dirBuffer, 0, dirBuffer.length);
+            directory = new Directory(dirBuffer, ioSystem.blockSize, maxFileSize);
+        }
+    }
+
+    private static FileDescriptor newInode() {
+        return new FileDescriptor(0, new int[]{
+                FileDescriptor.BLOCK_UNUSED,
+                FileDescriptor.BLOCK_UNUSED,
+                FileDescriptor.BLOCK_UNUSED
+        });
+    }
+
+    /**
+     * Read the inode map and every FD group, and find out which blocks are live
+     * @param checkpoint checkpoint block, positioned after the header
+     */
+    private void loadInodeMap(ByteBuffer checkpoint) {
+        byte[] buffer = new byte[ioSystem.blockSize];
+        for (int j = 0; j < inodeMapBlockAddresses.length; j++) {
+            inodeMapBlockAddresses[j] = checkpoint.getInt();
+            markLive(inodeMapBlockAddresses[j], BLOCK_INODE_MAP, j);
+            ioSystem.readBlock(inodeMapBlockAddresses[j], buffer);
+            ByteBuffer inodeMapBlock = ByteBuffer.wrap(buffer);
+            for (int g = j * inodeMapEntriesInBlock; g < Math.min((j + 1) * inodeMapEntriesInBlock, inodeGroupAddresses.length); g++)
+                inodeGroupAddresses[g] = inodeMapBlock.getInt();
+        }
+
+        for (int g = 0; g < inodeGroupAddresses.length; g++) {
+            if (inodeGroupAddresses[g] == NO_ADDRESS)
+                continue;
+            markLive(inodeGroupAddresses[g], BLOCK_INODES, g);
+            ioSystem.readBlock(inodeGroupAddresses[g], buffer);
+            ByteBuffer group = ByteBuffer.wrap(buffer);
+            for (int fdIndex = g * numOfFdInBlock; fdIndex < (g + 1) * numOfFdInBlock; fdIndex++) {
+                FileDescriptor fd = new FileDescriptor(group.getInt(), new int[]{
+                        group.getInt(),
+                        group.getInt(),
+                        group.getInt()
+                });
+                if (fd.isUnused())
+                    continue;
+                inodes[fdIndex] = fd;
+                for (int i = 0; i < FileDescriptor.BLOCK_COUNT; i++) {
+                    if (fd.blocks[i] != FileDescriptor.BLOCK_UNUSED)
+                        markLive(fd.blocks[i], BLOCK_DATA, fdIndex * FileDescriptor.BLOCK_COUNT + i);
+                }
+            }
+        }
+
+        for (int s = 0; s < segmentCount; s++) {
+            cleanSegments[s] = liveBlockCounts[s] == 0;
+            if (cleanSegments[s])
+                cleanSegmentCount++;
+        }
+    }
+
+    private int getSegmentStart(int segment) {
+        return 1 + segment * segmentBlocks;
+    }
+
+    private int getSegment(int address) {
+        return (address - 1) / segmentBlocks;
+    }
+
+    private void markLive(int address, byte type, int owner) {
+        blockTypes[address] = type;
+        blockOwners[address] = owner;
+        liveBlockCounts[getSegment(address)]++;
+    }
+
+    /**
+     * Mark an old copy of a block as dead
+     */
+    private void markDead(int address) {
+        if (address == NO_ADDRESS)
+            return;
+        blockTypes[address] = BLOCK_DEAD;
+        liveBlockCounts[getSegment(address)]--;
+    }
+
+    /**
+     * @return amount of blocks which can still be appended to the log
+     */
+    private int getFreeLogBlocks() {
+        return cleanSegmentCount * segmentBlocks + (currentSegment == NO_SEGMENT ? 0 : segmentBlocks - nextSlot);
+    }
+
+    /**
+     * Make sure that the current segment has room for one more block.
+     * Blocks may be relocated by cleaning while this runs, so block contents should be prepared afterwards.
+     */
+    private void ensureLogSpace() throws FakeIOException {
+        if (!maintenance && getFreeLogBlocks() <= reservedBlocks) {
+            reclaimSpace();
+            if (getFreeLogBlocks() <= reservedBlocks)
+                throw new FakeIOException("Out of space");
+        }
+        if (nextSlot < segmentBlocks)
+            return;
+        writeSegment();
+
+        int segment = NO_SEGMENT;
+        for (int s = 0; s < segmentCount && segment == NO_SEGMENT; s++) {
+            if (cleanSegments[s])
+                segment = s;
+        }
+        if (segment == NO_SEGMENT)
+            throw new FakeIOException("Out of space");
+
+        cleanSegments[segment] = false;
+        cleanSegmentCount--;
+        currentSegment = segment;
+        nextSlot = 0;
+        writtenSlots = 0;
+    }
+
+    /**
+     * Append a block to the log
+     * @param offset position of block data in buffer
+     * @return address of the block
+     */
+    private int appendBlock(byte[] buffer, int offset, byte type, int owner) throws FakeIOException {
+        ensureLogSpace();
+        System.arraycopy(buffer, offset, segmentBuffer, nextSlot * ioSystem.blockSize, ioSystem.blockSize);
+        int address = getSegmentStart(currentSegment) + nextSlot;
+        nextSlot++;
+        markLive(address, type, owner);
+        return address;
+    }
+
+    /**
+     * Write blocks of the current segment which are not on the device yet, with a single request
+     */
+    private void writeSegment() {
+        if (currentSegment == NO_SEGMENT || writtenSlots == nextSlot)
+            return;
+        int[] addresses = new int[nextSlot - writtenSlots];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = getSegmentStart(currentSegment) + writtenSlots + i;
+        ioSystem.writeBlocks(addresses, addresses.length, segmentBuffer, writtenSlots * ioSystem.blockSize);
+        writtenSlots = nextSlot;
+    }
+
+    private void readLogBlock(int address, byte[] buffer) {
+        int slot = address - getSegmentStart(currentSegment);
+        if (getSegment(address) == currentSegment && slot >= writtenSlots)
+            System.arraycopy(segmentBuffer, slot * ioSystem.blockSize, buffer, 0, ioSystem.blockSize);
+        else
+            ioSystem.readBlock(address, buffer);
+    }
+
+    private void storeInodeGroup(int group) throws FakeIOException {
+        ensureLogSpace();
+        byte[] data = new byte[ioSystem.blockSize];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int fdIndex = group * numOfFdInBlock; fdIndex < (group + 1) * numOfFdInBlock; fdIndex++) {
+            FileDescriptor fd = inodes[fdIndex];
+            if (fd == null) {
+                // Same as an unused FD in FileSystem
+                buffer.position(buffer.position() + FileDescriptor.BYTES);
+                continue;
+            }
+            buffer.putInt(fd.fileSize);
+            for (int blockPointer : fd.blocks)
+                buffer.putInt(blockPointer);
+        }
+
+        int address = appendBlock(data, 0, BLOCK_INODES, group);
+        markDead(inodeGroupAddresses[group]);
+        inodeGroupAddresses[group] = address;
+        dirtyInodeGroups[group] = false;
+        dirtyInodeMapBlocks[group / inodeMapEntriesInBlock] = true;
+    }
+
+    private void storeInodeMapBlock(int inodeMapBlock) throws FakeIOException {
+        ensureLogSpace();
+        byte[] data = new byte[ioSystem.blockSize];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int firstGroup = inodeMapBlock * inodeMapEntriesInBlock;
+        for (int g = firstGroup; g < Math.min(firstGroup + inodeMapEntriesInBlock, inodeGroupAddresses.length); g++)
+            buffer.putInt(inodeGroupAddresses[g]);
+
+        int address = appendBlock(data, 0, BLOCK_INODE_MAP, inodeMapBlock);
+        markDead(inodeMapBlockAddresses[inodeMapBlock]);
+        inodeMapBlockAddresses[inodeMapBlock] = address;
+        dirtyInodeMapBlocks[inodeMapBlock] = false;
+    }
+
+    /**
+     * Append changed FD groups and inode map blocks to the log, write the log out, and then the checkpoint.
+     * Segments which became dead since the previous checkpoint are clean afterwards.
+     */
+    private void checkpoint() throws FakeIOException {
+        boolean wasMaintenance = maintenance;
+        maintenance = true;
+        try {
+            for (int g = 0; g < dirtyInodeGroups.length; g++) {
+                if (dirtyInodeGroups[g])
+                    storeInodeGroup(g);
+            }
+            for (int j = 0; j < dirtyInodeMapBlocks.length; j++) {
+                if (dirtyInodeMapBlocks[j])
+                    storeInodeMapBlock(j);
+            }
+            writeSegment();
+
+            byte[] data = new byte[ioSystem.blockSize];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            buffer.putInt(CHECKPOINT_MAGIC);
+            buffer.putInt(segmentBlocks);
+            buffer.putInt(inodeMapBlockAddresses.length);
+            for (int address : inodeMapBlockAddresses)
+                buffer.putInt(address);
+            ioSystem.writeBlock(CHECKPOINT_BLOCK, data);
+
+            for (int s = 0; s < segmentCount; s++) {
+                if (s != currentSegment && liveBlockCounts[s] == 0 && !cleanSegments[s]) {
+                    cleanSegments[s] = true;
+                    cleanSegmentCount++;
+                }
+            }
+        } finally {
+            maintenance = wasMaintenance;
+        }
+    }
+
+    /**
+     * Called when writes are about to run into the reserve:
+     * release dead segments with a checkpoint, and clean more segments if that was not enough.
+     * Only segments which free more room than cleaning takes are cleaned, so the reserve does not shrink.
+     */
+    private void reclaimSpace() throws FakeIOException {
+        maintenance = true;
+        try {
+            boolean hasDeadSegments = false;
+            for (int s = 0; s < segmentCount; s++) {
+                if (s != currentSegment && liveBlockCounts[s] == 0 && !cleanSegments[s])
+                    hasDeadSegments = true;
+            }
+            if (hasDeadSegments)
+                checkpoint();
+            while (getFreeLogBlocks() <= reservedBlocks) {
+                int victim = findSegmentToClean();
+                if (victim == NO_SEGMENT)
+                    break;
+                cleanSegment(victim);
+                checkpoint();
+            }
+        } finally {
+            maintenance = false;
+        }
+    }
+
+    /**
+     * @return segment with the fewest live blocks which is worth cleaning, {@link #NO_SEGMENT} if there is none
+     */
+    private int findSegmentToClean() {
+        int victim = NO_SEGMENT;
+        for (int s = 0; s < segmentCount; s++) {
+            if (s == currentSegment || cleanSegments[s] || liveBlockCounts[s] == 0)
+                continue;
+            if (victim != NO_SEGMENT && liveBlockCounts[s] >= liveBlockCounts[victim])
+                continue;
+            //Cleaning which takes up more room than it frees would eat into the reserve
+            if (getCleaningCost(s) < segmentBlocks)
+                victim = s;
+        }
+        return victim;
+    }
+
+    /**
+     * @return how many blocks would be appended to the log by cleaning a segment and the checkpoint after it
+     */
+    private int getCleaningCost(int segment) {
+        boolean[] groups = dirtyInodeGroups.clone();
+        boolean[] inodeMapBlocks = dirtyInodeMapBlocks.clone();
+        int cost = 0;
+        for (int address = getSegmentStart(segment); address < getSegmentStart(segment + 1); address++) {
+            switch (blockTypes[address]) {
+                case BLOCK_DATA -> {
+                    cost++;
+                    groups[blockOwners[address] / FileDescriptor.BLOCK_COUNT / numOfFdInBlock] = true;
+                }
+                case BLOCK_INODES -> groups[blockOwners[address]] = true;
+                case BLOCK_INODE_MAP -> inodeMapBlocks[blockOwners[address]] = true;
+            }
+        }
+        for (int g = 0; g < groups.length; g++) {
+            if (groups[g]) {
+                cost++;
+                inodeMapBlocks[g / inodeMapEntriesInBlock] = true;
+            }
+        }
+        for (boolean dirty : inodeMapBlocks) {
+            if (dirty)
+                cost++;
+        }
+        return cost;
+    }
+
+    /**
+     * Append live blocks of a segment to the log again, so that the whole segment is dead
+     */
+    private void cleanSegment(int segment) throws FakeIOException {
+        int start = getSegmentStart(segment);
+        int[] addresses = new int[segmentBlocks];
+        for (int i = 0; i < segmentBlocks; i++)
+            addresses[i] = start + i;
+        byte[] data = new byte[segmentBlocks * ioSystem.blockSize];
+        ioSystem.readBlocks(addresses, segmentBlocks, data, 0);
+
+        for (int address : addresses) {
+            int owner = blockOwners[address];
+            switch (blockTypes[address]) {
+                case BLOCK_DATA -> {
+                    int newAddress = appendBlock(data, (address - start) * ioSystem.blockSize, BLOCK_DATA, owner);
+                    markDead(address);
+                    int fdIndex = owner / FileDescriptor.BLOCK_COUNT;
+                    inodes[fdIndex].blocks[owner % FileDescriptor.BLOCK_COUNT] = newAddress;
+                    dirtyInodeGroups[fdIndex / numOfFdInBlock] = true;
+                }
+                case BLOCK_INODES -> storeInodeGroup(owner);
+                case BLOCK_INODE_MAP -> storeInodeMapBlock(owner);
+            }
+        }
+    }
+
+    /**
+     * Clean the segments with the fewest live blocks, and write a checkpoint so that they can be reused.
+     * Open files stay usable.
+     *
+     * @param maxSegments max amount of segments to clean
+     * @return amount of segments cleaned
+     */
+    public int cleanSegments(int maxSegments) throws FakeIOException {
+        boolean wasMaintenance = maintenance;
+        maintenance = true;
+        try {
+            int cleaned = 0;
+            while (cleaned < maxSegments) {
+                int victim = findSegmentToClean();
+                if (victim == NO_SEGMENT)
+                    break;
+                cleanSegment(victim);
+                cleaned++;
+            }
+            checkpoint();
+            return cleaned;
+        } finally {
+            maintenance = wasMaintenance;
+        }
+    }
+
+    /**
+     * @return amount of segments which can be written to
+     */
+    public int getCleanSegmentCount() {
+        return cleanSegmentCount;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Read contents of file into buffer
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to read into
+     * @param count how many bytes to read
+     * @return amount of bytes read, {@link #END_OF_FILE} if reached end of file
+     */
+    @Override
+    public int read(int openFile, byte[] buffer, int count) throws FakeIOException {
+        return read(oftTable.getOpenFileSafe(openFile), buffer, 0, count);
+    }
+
+    /**
+     * Read contents of file into part of buffer
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to read into
+     * @param offset position in buffer where the data goes
+     * @param count how many bytes to read
+     * @return amount of bytes read, {@link #END_OF_FILE} if reached end of file
+     */
+    @Override
+    public int read(int openFile, byte[] buffer, int offset, int count) throws FakeIOException {
+        return read(oftTable.getOpenFileSafe(openFile), buffer, offset, count);
+    }
+
+    private int read(OpenFile file, byte[] buffer, int offset, int count) throws FakeIOException {
+        if (offset < 0 || count < 0 || count > buffer.length - offset)
+            throw new IllegalArgumentException("Byte count is bigger than buffer size!");
+
+        if (file.position >= file.fd.fileSize)
+            return END_OF_FILE;
+
+        int bytesRead = 0;
+        while (bytesRead < count && file.position < file.fd.fileSize) {
+            if (file.bufferBlockNum != file.position / ioSystem.blockSize)
+                swapBuffer(file, file.position / ioSystem.blockSize, true);
+
+            int positionInBuffer = file.position % ioSystem.blockSize;
+            int copyCount = Math.min(
+                    Math.min(file.fd.fileSize - file.position, count - bytesRead),
+                    ioSystem.blockSize - positionInBuffer
+            );
+            System.arraycopy(file.buffer, positionInBuffer, buffer, offset + bytesRead, copyCount);
+            bytesRead += copyCount;
+            file.position += copyCount;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Append current buffer to the log if it was modified, and load another block of the file into the buffer.
+     * Holes are loaded as zeros, without any I/O.
+     *
+     * @param blockNum relative index of the block to load
+     * @param load false if the whole block is about to be overwritten, so its old data is not needed
+     */
+    private void swapBuffer(OpenFile file, int blockNum, boolean load) throws FakeIOException {
+        if (file.dirtyBuffer)
+            storeBuffer(file);
+        file.bufferBlockNum = blockNum;
+        if (!load)
+            return;
+        if (file.fd.blocks[blockNum] == FileDescriptor.BLOCK_UNUSED)
+            Arrays.fill(file.buffer, (byte) 0);
+        else
+            readLogBlock(file.fd.blocks[blockNum], file.buffer);
+    }
+
+    private void storeBuffer(OpenFile file) throws FakeIOException {
+        int owner = file.fdIndex * FileDescriptor.BLOCK_COUNT + file.bufferBlockNum;
+        int address = appendBlock(file.buffer, 0, BLOCK_DATA, owner);
+        //Cleaning could have moved the old copy while the block was being appended
+        markDead(file.fd.blocks[file.bufferBlockNum]);
+        file.fd.blocks[file.bufferBlockNum] = address;
+        file.dirtyBuffer = false;
+        //The old copy is dead, so any checkpoint from now on has to store the new address
+        dirtyInodeGroups[file.fdIndex / numOfFdInBlock] = true;
+    }
+
+    /**
+     * Write contents of buffer into file
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to write from
+     * @param count how many bytes to write
+     * @return amount of bytes written
+     */
+    @Override
+    public int write(int openFile, byte[] buffer, int count) throws FakeIOException {
+        return write(oftTable.getOpenFileSafe(openFile), buffer, 0, count);
+    }
+
+    /**
+     * Write part of buffer into file
+     *
+     * @param openFile open file index obtained via open()
+     * @param buffer data buffer to write from
+     * @param offset position in buffer where the data starts
+     * @param count how many bytes to write
+     * @return amount of bytes written
+     */
+    @Override
+    public int write(int openFile, byte[] buffer, int offset, int count) throws FakeIOException {
+        return write(oftTable.getOpenFileSafe(openFile), buffer, offset, count);
+    }
+
+    private int write(OpenFile file, byte[] buffer, int offset, int count) throws FakeIOException {
+        if (offset < 0 || count < 0 || count > buffer.length - offset)
+            throw new IllegalArgumentException("Byte count is bigger than buffer size!");
+
+        int bytesWritten = 0;
+        while (bytesWritten < count) {
+            int positionInBuffer = file.position % ioSystem.blockSize;
+            int copyCount = Math.min(count - bytesWritten, ioSystem.blockSize - positionInBuffer);
+
+            if (file.bufferBlockNum != file.position / ioSystem.blockSize) {
+                if (file.position / ioSystem.blockSize >= FileDescriptor.BLOCK_COUNT)
+                    throw new FakeIOException("File can only be " + FileDescriptor.BLOCK_COUNT + " blocks long");
+                swapBuffer(file, file.position / ioSystem.blockSize, copyCount < ioSystem.blockSize);
+            }
+
+            System.arraycopy(buffer, offset + bytesWritten, file.buffer, positionInBuffer, copyCount);
+            bytesWritten += copyCount;
+            file.position += copyCount;
+            if (file.position > file.fd.fileSize) {
+                file.fd.fileSize = file.position;
+                dirtyInodeGroups[file.fdIndex / numOfFdInBlock] = true;
+            }
+            file.dirtyBuffer = true;
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Move current read/write position in open file
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @param position new read/write position
+     */
+    @Override
+    public void seek(int openFile, int position) throws FakeIOException {
+        //Seeking past end of file is fine, writing there leaves a hole
+        if (position < 0 || position > maxFileSize)
+            throw new FakeIOException("Can't seek to position " + position +
+                    ", max file size is " + maxFileSize);
+        oftTable.getOpenFileSafe(openFile).position = position;
+    }
+
+    /**
+     * Append cached data of every open file to the log, and write a checkpoint.
+     * This should be called before saving the emulated I/O system into real storage
+     */
+    @Override
+    public void sync() throws FakeIOException {
+        //Directory changes could have failed to be written earlier
+        saveDirectory();
+        for (int i = 0; i < oftTable.size; i++) {
+            OpenFile file = oftTable.getOpenFile(i);
+            if (file != null)
+                sync(file);
+        }
+        checkpoint();
+    }
+
+    /**
+     * Append cached data to the log, the FD is written at the next checkpoint
+     */
+    private void sync(OpenFile file) throws FakeIOException {
+        if (file.dirtyBuffer)
+            storeBuffer(file);
+    }
+
+    private byte[] encodeFileName(String fileName) throws FakeIOException {
+        if (fileName == null || fileName.isEmpty())
+            throw new FakeIOException("Illegal file name");
+
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > directory.getMaxNameBytes())
+            throw new FakeIOException("Max length of file name is " + directory.getMaxNameBytes() + " bytes");
+        return name;
+    }
+
+    /**
+     * Write changed blocks of the directory to the root directory file
+     */
+    private void saveDirectory() throws FakeIOException {
+        byte[] data = directory.toByteArray();
+        int offset = directory.markSaved(data);
+        if (offset == data.length)
+            return;
+        root.position = offset;
+        try {
+            write(root, data, offset, data.length - offset);
+        } catch (FakeIOException e) {
+            directory.markUnsaved(offset);
+            throw e;
+        }
+    }
+
+    /**
+     * Create new file in the file system
+     * @param fileName name of created file (max name length is {@link #MAX_FILE_NAME_SIZE} bytes)
+     */
+    @Override
+    public void create(String fileName) throws FakeIOException {
+        byte[] name = encodeFileName(fileName);
+
+        int freeFd = -1;
+        for (int i = 1; i < inodes.length && freeFd < 0; i++) {
+            if (inodes[i] == null)
+                freeFd = i;
+        }
+        if (freeFd < 0)
+            throw new FakeIOException("Can't find free file descriptor");
+
+        directory.createEntry(name, freeFd);
+        inodes[freeFd] = newInode();
+        dirtyInodeGroups[freeFd / numOfFdInBlock] = true;
+        saveDirectory();
+    }
+
+    /**
+     * Destroy a file in the file system
+     * @param fileName name of the file
+     */
+    @Override
+    public void destroy(String fileName) throws FakeIOException {
+        int entryIndex = directory.findEntry(encodeFileName(fileName));
+        int fdIndex = directory.entries.get(entryIndex).fdIndex;
+        if (oftTable.isOpened(fdIndex))
+            throw new FakeIOException("File is opened");
+        directory.removeEntry(entryIndex);
+
+        for (int block : inodes[fdIndex].blocks) {
+            if (block != FileDescriptor.BLOCK_UNUSED)
+                markDead(block);
+        }
+        inodes[fdIndex] = null;
+        dirtyInodeGroups[fdIndex / numOfFdInBlock] = true;
+        saveDirectory();
+    }
+
+    /**
+     * Open an existing file for read/write operations.
+     * @param fileName name of the file in file system
+     * @return index of opened file, usable for {@link #read(int, byte[], int)} and {@link #write(int, byte[], int)}
+     */
+    @Override
+    public int openFile(String fileName) throws FakeIOException {
+        int entryIndex = directory.search(encodeFileName(fileName));
+        if (entryIndex < 0)
+            throw new FakeIOException("File does not exist: " + fileName);
+
+        int fdIndex = directory.entries.get(entryIndex).fdIndex;
+        return oftTable.allocate(fdIndex, inodes[fdIndex]);
+    }
+
+    /**
+     * Closes opened file, its data is appended to the log.
+     * @param openFile index of open file, obtainable via {@link #openFile(String)}
+     */
+    @Override
+    public void closeFile(int openFile) throws FakeIOException {
+        OpenFile file = oftTable.getOpenFileSafe(openFile);
+        sync(file);
+        oftTable.deallocate(file);
+    }
+
+    /**
+     * @return names of all files in the root directory, in sorted order
+     */
+    @Override
+    public List<String> getFileNames() {
+        List<String> names = new ArrayList<>(directory.entries.size());
+        for (DirectoryEntry entry : directory.entries)
+            names.add(entry.getName());
+        return names;
+    }
+
+    /**
+     * Builds a string with file names and their size
+     * @return string with main info about files
+     */
+    @Override
+    public String listFiles() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < directory.entries.size(); i++) {
+            DirectoryEntry entry = directory.entries.get(i);
+            if (i > 0)
+                sb.append(", ");
+            sb.append(entry.getName());
+            sb.append(' ');
+            sb.append(inodes[entry.fdIndex].fileSize);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if any file other than the root directory is open
+     */
+    @Override
+    public boolean hasOpenFiles() {
+        for (int i = 0; i < oftTable.size; i++) {
+            OpenFile file = oftTable.getOpenFile(i);
+            if (file != null && file != root)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return approximate amount of memory used by cached buffers, the current segment,
+     * directory contents, FDs and block usage tables, in bytes
+     */
+    @Override
+    public long getMemoryUsage() {
+        long usage = segmentBuffer.length;
+        for (int i = 0; i < oftTable.size; i++) {
+            if (oftTable.getOpenFile(i) != null)
+                usage += ioSystem.blockSize;
+        }
+        for (DirectoryEntry entry : directory.entries)
+            usage += entry.name.length + Integer.BYTES;
+        for (FileDescriptor fd : inodes) {
+            if (fd != null)
+                usage += FileDescriptor.BYTES;
+        }
+        usage += (long) blockTypes.length * (1 + Integer.BYTES);
+        return usage;
+    }
+
+    /**
+     * @return true if a file with this name exists in the root directory
+     */
+    @Override
+    public boolean exists(String fileName) {
+        if (fileName == null || fileName.isEmpty())
+            return false;
+        return directory.search(fileName.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /**
+     * @param openFile index of open file, obtained via {@link #openFile(String)}
+     * @return current size of the file
+     */
+    @Override
+    public int getFileSize(int openFile) throws FakeIOException {
+        return oftTable.getOpenFileSafe(openFile).fd.fileSize;
+    }
+
+    /**
+     * @param fileName name of the file, it does not have to be open
+     * @return current size of the file
+     */
+    @Override
+    public int getFileSize(String fileName) throws FakeIOException {
+        int entryIndex = directory.findEntry(encodeFileName(fileName));
+        return inodes[directory.entries.get(entryIndex).fdIndex].fileSize;
+    }
+
+    /**
+     * @return max size of a single file in bytes
+     */
+    @Override
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    @Override
+    public String getFileName(int openFile) throws FakeIOException {
+        int fdIndex = oftTable.getOpenFileSafe(openFile).fdIndex;
+        for (DirectoryEntry entry : directory.entries) {
+            if (entry.fdIndex == fdIndex)
+                return entry.getName();
+        }
+        throw new FakeIOException("File is open but not not found in the root directory? Something is very wrong.");
+    }
+}
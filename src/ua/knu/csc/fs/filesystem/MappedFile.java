@@ -0,0 +1,219 @@
+package ua.knu.csc.fs.filesystem;
+
+import ua.knu.csc.fs.MathUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * View of the contents of an open file, obtained via {@link FileSystem#map(int, Mode)}.
+ * The view covers the file as it was when it was mapped, its size does not change.
+ * <p>
+ * Blocks are looked up the first time they are accessed, so repeated random access does not go through
+ * the file system or the buffer of the open file. If the device keeps its blocks in memory
+ * (see {@link ua.knu.csc.fs.IOSystem#getBlockView(int)}), the view uses that memory directly,
+ * and changes go straight to the device. Otherwise, or if the block can't be changed in place
+ * (holes, inline and compressed files, blocks shared by deduplication), the block is copied into the view.
+ * <p>
+ * Changes are part of the file after {@link #force()}, {@link #unmap()}, or when the file is closed:
+ * copied blocks are written back, and the buffer of the open file is dropped in case it has an old copy.
+ * Changing the file in any other way writes the view back first, and the view looks up the blocks again afterwards.
+ */
+public final class MappedFile {
+    public enum Mode {
+        READ_ONLY,
+        READ_WRITE
+    }
+
+    private final FileSystem fileSystem;
+    private final Mode mode;
+    private final int size;
+    private final int blockSize;
+
+    /**
+     * Null once the file is closed
+     */
+    private OpenFile file;
+    /**
+     * Contents of each block of the file, null if the block was not looked up yet
+     */
+    private final ByteBuffer[] blocks;
+    /**
+     * Blocks which are viewed right on the device instead of copied
+     */
+    private final boolean[] directBlocks;
+    /**
+     * Copied blocks which were changed, blocks which are viewed directly are never dirty
+     */
+    private final boolean[] dirtyBlocks;
+    /**
+     * Some block was changed right on the device since the last {@link #force()}
+     */
+    private boolean directChanges;
+
+    MappedFile(FileSystem fileSystem, OpenFile file, Mode mode, int size, int blockSize) {
+        this.fileSystem = fileSystem;
+        this.file = file;
+        this.mode = mode;
+        this.size = size;
+        this.blockSize = blockSize;
+        int blockCount = MathUtils.divideCeil(size, blockSize);
+        this.blocks = new ByteBuffer[blockCount];
+        this.directBlocks = new boolean[blockCount];
+        this.dirtyBlocks = new boolean[blockCount];
+    }
+
+    /**
+     * @return size of the file when it was mapped
+     */
+    public int size() {
+        return size;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public byte get(int position) {
+        checkRange(position, 1);
+        return getBlock(position / blockSize).get(position % blockSize);
+    }
+
+    /**
+     * Copy part of the file into buffer
+     */
+    public void get(int position, byte[] buffer, int offset, int length) {
+        checkRange(position, length);
+        int copied = 0;
+        while (copied < length) {
+            int positionInBlock = (position + copied) % blockSize;
+            int copyCount = Math.min(length - copied, blockSize - positionInBlock);
+            getBlock((position + copied) / blockSize).get(positionInBlock, buffer, offset + copied, copyCount);
+            copied += copyCount;
+        }
+    }
+
+    public void put(int position, byte value) {
+        checkWritable();
+        checkRange(position, 1);
+        int blockNum = position / blockSize;
+        getBlock(blockNum).put(position % blockSize, value);
+        markChanged(blockNum);
+    }
+
+    /**
+     * Copy part of buffer into the file
+     */
+    public void put(int position, byte[] buffer, int offset, int length) {
+        checkWritable();
+        checkRange(position, length);
+        int copied = 0;
+        while (copied < length) {
+            int blockNum = (position + copied) / blockSize;
+            int positionInBlock = (position + copied) % blockSize;
+            int copyCount = Math.min(length - copied, blockSize - positionInBlock);
+            getBlock(blockNum).put(positionInBlock, buffer, offset + copied, copyCount);
+            markChanged(blockNum);
+            copied += copyCount;
+        }
+    }
+
+    private void markChanged(int blockNum) {
+        if (directBlocks[blockNum])
+            directChanges = true;
+        else
+            dirtyBlocks[blockNum] = true;
+    }
+
+    /**
+     * Write blocks changed through this view to the file
+     */
+    public void force() throws FakeIOException {
+        checkOpen();
+        for (int i = 0; i < blocks.length; i++) {
+            if (!dirtyBlocks[i])
+                continue;
+            int count = Math.min(blockSize, size - i * blockSize);
+            fileSystem.writeMappedBlock(this, file, i * blockSize, blocks[i].array(), count);
+            dirtyBlocks[i] = false;
+        }
+        if (directChanges) {
+            fileSystem.dropCleanBuffer(file);
+            directChanges = false;
+        }
+    }
+
+    private ByteBuffer getBlock(int blockNum) {
+        checkOpen();
+        ByteBuffer block = blocks[blockNum];
+        if (block == null) {
+            int end = Math.min(size, (blockNum + 1) * blockSize);
+            block = fileSystem.getMappedBlockView(file, blockNum, end, mode == Mode.READ_WRITE);
+            directBlocks[blockNum] = block != null;
+            if (block == null) {
+                byte[] copy = new byte[blockSize];
+                fileSystem.readMappedBlock(file, blockNum * blockSize, copy);
+                block = ByteBuffer.wrap(copy);
+            }
+            blocks[blockNum] = block;
+        }
+        return block;
+    }
+
+    /**
+     * Forget a block which was changed in the file, unless this view has its own changes in it
+     */
+    void invalidate(int blockNum) {
+        if (blockNum < blocks.length && !dirtyBlocks[blockNum]) {
+            blocks[blockNum] = null;
+            directBlocks[blockNum] = false;
+        }
+    }
+
+    /**
+     * @return true if the block may be changed through this view right on the device,
+     * so no other file should share it
+     */
+    boolean isChangedInPlace(int blockNum) {
+        return mode == Mode.READ_WRITE && blockNum < blocks.length && directBlocks[blockNum];
+    }
+
+    /**
+     * Forget every block, the view should be written back first
+     */
+    void invalidateAll() {
+        for (int i = 0; i < blocks.length; i++)
+            invalidate(i);
+    }
+
+    /**
+     * Write back changes and stop using the view, otherwise it stays until the file is closed
+     */
+    public void unmap() throws FakeIOException {
+        force();
+        file.mappings.remove(this);
+        file = null;
+    }
+
+    /**
+     * Stop using the view, because the file is being closed
+     */
+    void close() {
+        file = null;
+    }
+
+    private void checkOpen() {
+        if (file == null)
+            throw new IllegalStateException("File was closed");
+    }
+
+    private void checkWritable() {
+        if (mode == Mode.READ_ONLY)
+            throw new ReadOnlyBufferException();
+    }
+
+    private void checkRange(int position, int length) {
+        if (position < 0 || length < 0 || position > size - length)
+            throw new IndexOutOfBoundsException("Range " + position + "+" + length + " is out of bounds, size is " + size);
+    }
+}
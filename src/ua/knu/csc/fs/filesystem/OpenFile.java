@@ -1,5 +1,8 @@
 package ua.knu.csc.fs.filesystem;
 
+import java.util.ArrayList;
+import java.util.List;
+
 final class OpenFile {
     /**
      * Current buffer for read/write operations, corresponds to one data block.
@@ -10,7 +13,7 @@ final class OpenFile {
      * The relative index of the data block which the buffer corresponds to.
      */
     int bufferBlockNum;
-    private final int BUFFER_BLOCK_NUM_NONE = -1;
+    static final int BUFFER_BLOCK_NUM_NONE = -1;
 
     /**
      * Current read/write position relative to start of file
@@ -37,6 +40,17 @@ final class OpenFile {
      */
     boolean dirtyFd;
 
+    /**
+     * When {@link FileSystem#flushDirty(long, double)} first saw this file dirty, in {@link System#nanoTime()} units
+     */
+    long dirtySince;
+    static final long DIRTY_SINCE_NONE = Long.MIN_VALUE;
+
+    /**
+     * Views of this file created by {@link FileSystem#map(int, MappedFile.Mode)}
+     */
+    final List<MappedFile> mappings = new ArrayList<>();
+
     private final int bufferSize;
 
     /**
@@ -45,7 +59,9 @@ final class OpenFile {
      */
     OpenFile(int bufferSize, int fdIndex) {
         this.bufferSize = bufferSize;
-        reset(fdIndex, null);
+        // Buffer is only allocated once the entry is used
+        reset();
+        this.fdIndex = fdIndex;
     }
     
     void reset(int fdIndex, FileDescriptor fd) {
@@ -56,6 +72,8 @@ final class OpenFile {
         this.position = 0;
         this.bufferBlockNum = BUFFER_BLOCK_NUM_NONE;
         this.dirtyBuffer = false;
+        this.dirtySince = DIRTY_SINCE_NONE;
+        this.mappings.clear();
     }
 
     void reset() {
@@ -70,6 +70,21 @@ final class OpenFileTable {
         return file;
     }
 
+    /**
+     * @param fdIndex index of file descriptor
+     * @return null if the file is not open, otherwise returns an OpenFile instance
+     */
+    public OpenFile findOpenFile(int fdIndex) {
+        if (fdIndex == FD_UNUSED)
+            return null;
+        for (OpenFile entry : entryPool) {
+            if (entry.fdIndex == fdIndex) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
     public boolean isOpened(int fdIndex) {
         for (OpenFile entry : entryPool) {
             if (entry.fdIndex == fdIndex) {
@@ -0,0 +1,73 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Cleans segments of a {@link LogStructuredFileSystem} in the background, see
+ * {@link LogStructuredFileSystem#cleanSegments(int)}. Cleaning starts once there are too few clean segments,
+ * so that writes rarely have to wait for it.
+ */
+public final class SegmentCleaner implements Runnable {
+    private final LogStructuredFileSystem fileSystem;
+    private final Lock fileSystemLock;
+    private final int minCleanSegments;
+    private final int segmentsPerStep;
+    private final long intervalMillis;
+
+    private volatile long cleanedSegmentCount;
+
+    /**
+     * @param fileSystemLock lock which guards every access to the file system
+     * @param minCleanSegments clean more segments when there are fewer clean segments than this
+     * @param segmentsPerStep how many segments to clean while holding the lock
+     * @param intervalMillis how often to check for clean segments
+     */
+    public SegmentCleaner(
+            LogStructuredFileSystem fileSystem,
+            Lock fileSystemLock,
+            int minCleanSegments,
+            int segmentsPerStep,
+            long intervalMillis
+    ) {
+        if (segmentsPerStep <= 0)
+            throw new IllegalArgumentException("Should clean at least one segment per step");
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("Interval should be positive");
+
+        this.fileSystem = fileSystem;
+        this.fileSystemLock = fileSystemLock;
+        this.minCleanSegments = minCleanSegments;
+        this.segmentsPerStep = segmentsPerStep;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Run until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                fileSystemLock.lock();
+                try {
+                    if (fileSystem.getCleanSegmentCount() < minCleanSegments)
+                        cleanedSegmentCount += fileSystem.cleanSegments(segmentsPerStep);
+                } finally {
+                    fileSystemLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (FakeIOException e) {
+            throw new RuntimeException("Segment cleaning failed", e);
+        }
+    }
+
+    /**
+     * @return how many segments were cleaned so far
+     */
+    public long getCleanedSegmentCount() {
+        return cleanedSegmentCount;
+    }
+}
@@ -0,0 +1,71 @@
+package ua.knu.csc.fs.filesystem;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Writes back dirty buffers and FDs of open files in the background, see {@link FileSystem#flushDirty(long, double)}.
+ * Data is never left dirty for much longer than the max age plus the interval, which bounds what is lost
+ * if the emulated device is saved without a sync, and leaves little to flush when files are closed.
+ */
+public final class WriteBackFlusher implements Runnable {
+    private final FileSystem fileSystem;
+    private final Lock fileSystemLock;
+    private final long maxAgeNanos;
+    private final double maxDirtyRatio;
+    private final long intervalMillis;
+
+    private volatile long flushCount;
+
+    /**
+     * @param fileSystemLock lock which guards every access to the file system
+     * @param maxAgeMillis how long a file may stay dirty
+     * @param maxDirtyRatio which part of the open file cache, from 0 to 1, may be dirty
+     * @param intervalMillis how often to check for dirty files
+     */
+    public WriteBackFlusher(
+            FileSystem fileSystem,
+            Lock fileSystemLock,
+            long maxAgeMillis,
+            double maxDirtyRatio,
+            long intervalMillis
+    ) {
+        if (maxDirtyRatio < 0 || maxDirtyRatio > 1)
+            throw new IllegalArgumentException("Dirty ratio should be between 0 and 1");
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("Interval should be positive");
+
+        this.fileSystem = fileSystem;
+        this.fileSystemLock = fileSystemLock;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.maxDirtyRatio = maxDirtyRatio;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Run until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                fileSystemLock.lock();
+                try {
+                    flushCount += fileSystem.flushDirty(maxAgeNanos, maxDirtyRatio);
+                } finally {
+                    fileSystemLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return how many times an open file was written back so far
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+}
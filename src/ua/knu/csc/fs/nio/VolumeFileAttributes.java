@@ -0,0 +1,94 @@
+package ua.knu.csc.fs.nio;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Attributes of a file in a volume. Volumes don't keep timestamps, so all of them are the epoch.
+ */
+final class VolumeFileAttributes implements BasicFileAttributes {
+    private static final FileTime NO_TIME = FileTime.fromMillis(0);
+
+    private final boolean directory;
+    private final long size;
+    private final String fileName;
+
+    VolumeFileAttributes(boolean directory, long size, String fileName) {
+        this.directory = directory;
+        this.size = size;
+        this.fileName = fileName;
+    }
+
+    /**
+     * @param attributes comma separated attribute names, or "*" for every attribute
+     */
+    Map<String, Object> toMap(String attributes) {
+        Map<String, Object> all = new HashMap<>();
+        all.put("lastModifiedTime", lastModifiedTime());
+        all.put("lastAccessTime", lastAccessTime());
+        all.put("creationTime", creationTime());
+        all.put("size", size());
+        all.put("isRegularFile", isRegularFile());
+        all.put("isDirectory", isDirectory());
+        all.put("isSymbolicLink", isSymbolicLink());
+        all.put("isOther", isOther());
+        all.put("fileKey", fileKey());
+        if (attributes.equals("*"))
+            return all;
+
+        Map<String, Object> selected = new HashMap<>();
+        for (String name : attributes.split(",")) {
+            if (!all.containsKey(name))
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            selected.put(name, all.get(name));
+        }
+        return selected;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return NO_TIME;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return NO_TIME;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return NO_TIME;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return fileName;
+    }
+}
@@ -0,0 +1,297 @@
+package ua.knu.csc.fs.nio;
+
+import ua.knu.csc.fs.filesystem.FileSystem;
+import ua.knu.csc.fs.filesystem.MappedFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel over a file which is open in a volume. Reads and writes use the positional calls of the volume,
+ * so the channel keeps its own position and the position of the open file is never used.
+ * <p>
+ * Heap buffers are read into and written from directly, so whole blocks go straight
+ * between the device and the caller's array.
+ */
+final class VolumeFileChannel extends FileChannel {
+    /**
+     * Size of intermediate buffer for direct buffers and transfers
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 1 << 16;
+
+    private final VolumeFileSystem fileSystem;
+    private final FileSystem volume;
+    private final int openFile;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+    private long position;
+
+    VolumeFileChannel(VolumeFileSystem fileSystem, int openFile, boolean readable, boolean writable, boolean append) {
+        this.fileSystem = fileSystem;
+        this.volume = fileSystem.getVolume();
+        this.openFile = openFile;
+        this.readable = readable;
+        this.writable = writable;
+        this.append = append;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        //The channel position is shared, so sequential reads can't run together
+        fileSystem.lock();
+        try {
+            int readCount = readLocked(dst, position);
+            if (readCount > 0)
+                position += readCount;
+            return readCount;
+        } finally {
+            fileSystem.unlock();
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (!dsts[i].hasRemaining())
+                continue;
+            int readCount = read(dsts[i]);
+            if (readCount < 0)
+                return total == 0 ? -1 : total;
+            total += readCount;
+            if (dsts[i].hasRemaining())
+                break;
+        }
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        fileSystem.lockForReading();
+        try {
+            return readLocked(dst, position);
+        } finally {
+            fileSystem.unlockForReading();
+        }
+    }
+
+    /**
+     * Same as {@link #read(ByteBuffer, long)}, either side of the volume lock should already be held
+     */
+    private int readLocked(ByteBuffer dst, long position) throws IOException {
+        if (!readable)
+            throw new NonReadableChannelException();
+        if (position < 0)
+            throw new IllegalArgumentException("Negative position");
+
+        ensureOpen();
+        if (position >= volume.getFileSize(openFile))
+            return FileSystem.END_OF_FILE;
+
+        int readCount;
+        if (dst.hasArray()) {
+            readCount = volume.read(openFile, (int) position, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (readCount > 0)
+                dst.position(dst.position() + readCount);
+        } else {
+            byte[] buffer = new byte[Math.min(dst.remaining(), TRANSFER_BUFFER_SIZE)];
+            readCount = volume.read(openFile, (int) position, buffer, buffer.length);
+            if (readCount > 0)
+                dst.put(buffer, 0, readCount);
+        }
+        return readCount;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        fileSystem.lock();
+        try {
+            ensureOpen();
+            if (append)
+                position = volume.getFileSize(openFile);
+            int writeCount = writeLocked(src, position);
+            position += writeCount;
+            return writeCount;
+        } finally {
+            fileSystem.unlock();
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += write(srcs[i]);
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        fileSystem.lock();
+        try {
+            ensureOpen();
+            return writeLocked(src, position);
+        } finally {
+            fileSystem.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #write(ByteBuffer, long)}, the volume lock should already be held.
+     * The lock is not taken twice, so any {@link java.util.concurrent.locks.Lock} can be used for the volume
+     */
+    private int writeLocked(ByteBuffer src, long position) throws IOException {
+        if (!writable)
+            throw new NonWritableChannelException();
+        if (position < 0)
+            throw new IllegalArgumentException("Negative position");
+        if (position + src.remaining() > volume.getMaxFileSize())
+            throw new IOException("File can't be bigger than " + volume.getMaxFileSize() + " bytes");
+
+        int writeCount;
+        if (src.hasArray()) {
+            writeCount = volume.write(openFile, (int) position, src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.position() + writeCount);
+        } else {
+            writeCount = 0;
+            byte[] buffer = new byte[Math.min(src.remaining(), TRANSFER_BUFFER_SIZE)];
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), buffer.length);
+                src.get(buffer, 0, count);
+                writeCount += volume.write(openFile, (int) position + writeCount, buffer, count);
+            }
+        }
+        return writeCount;
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        fileSystem.lockForReading();
+        try {
+            ensureOpen();
+            return volume.getFileSize(openFile);
+        } finally {
+            fileSystem.unlockForReading();
+        }
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        if (!writable)
+            throw new NonWritableChannelException();
+        if (size < 0)
+            throw new IllegalArgumentException("Negative size");
+
+        fileSystem.lock();
+        try {
+            ensureOpen();
+            if (size < volume.getFileSize(openFile))
+                volume.truncate(openFile, (int) size);
+            position = Math.min(position, size);
+            return this;
+        } finally {
+            fileSystem.unlock();
+        }
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        fileSystem.lock();
+        try {
+            ensureOpen();
+            volume.sync();
+        } finally {
+            fileSystem.unlock();
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Math.max(count, 0), TRANSFER_BUFFER_SIZE));
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count - transferred));
+            int readCount = read(buffer, position + transferred);
+            if (readCount <= 0)
+                break;
+            buffer.flip();
+            while (buffer.hasRemaining())
+                target.write(buffer);
+            transferred += readCount;
+        }
+        return transferred;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Math.max(count, 0), TRANSFER_BUFFER_SIZE));
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), count - transferred));
+            int readCount = src.read(buffer);
+            if (readCount <= 0)
+                break;
+            buffer.flip();
+            transferred += write(buffer, position + transferred);
+        }
+        return transferred;
+    }
+
+    /**
+     * MappedByteBuffer can only be created by the JDK itself, use {@link FileSystem#map(int, MappedFile.Mode)} instead
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Files in a volume can't be mapped as MappedByteBuffer, use FileSystem.map()");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Files in a volume can't be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Files in a volume can't be locked");
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        fileSystem.lock();
+        try {
+            volume.closeFile(openFile);
+        } finally {
+            fileSystem.unlock();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen())
+            throw new ClosedChannelException();
+        fileSystem.ensureOpen();
+    }
+}
@@ -0,0 +1,334 @@
+package ua.knu.csc.fs.nio;
+
+import ua.knu.csc.fs.filesystem.FakeIOException;
+import ua.knu.csc.fs.filesystem.FileSystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * A volume exposed through java.nio.file, created with {@link VolumeFileSystemProvider}.
+ * All calls to the underlying {@link FileSystem} are made while holding the volume lock,
+ * so paths and channels of one volume can be used from many threads.
+ * <p>
+ * Positional reads, {@link #exists(VolumePath)}, directory listing and the size of a channel only take the read side
+ * of the lock, so they don't wait for each other. If the device can't serve reads from several threads
+ * (see {@link FileSystem#canReadConcurrently()}) or the lock is a plain {@link Lock}, they are serialized as well.
+ */
+public final class VolumeFileSystem extends java.nio.file.FileSystem {
+    private final VolumeFileSystemProvider provider;
+    private final String id;
+    private final FileSystem volume;
+    private final Lock lock;
+    private final Lock readLock;
+    private final VolumePath rootDirectory;
+    private volatile boolean open = true;
+
+    VolumeFileSystem(VolumeFileSystemProvider provider, String id, FileSystem volume, ReadWriteLock lock) {
+        this(provider, id, volume, lock.writeLock(), volume.canReadConcurrently() ? lock.readLock() : lock.writeLock());
+    }
+
+    VolumeFileSystem(VolumeFileSystemProvider provider, String id, FileSystem volume, Lock lock) {
+        this(provider, id, volume, lock, lock);
+    }
+
+    private VolumeFileSystem(VolumeFileSystemProvider provider, String id, FileSystem volume, Lock lock, Lock readLock) {
+        this.provider = provider;
+        this.id = id;
+        this.volume = volume;
+        this.lock = lock;
+        this.readLock = readLock;
+        this.rootDirectory = new VolumePath(this, true, new String[0]);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    FileSystem getVolume() {
+        return volume;
+    }
+
+    VolumePath getRootDirectory() {
+        return rootDirectory;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Lock for calls which don't modify the volume, other readers may hold it at the same time
+     */
+    void lockForReading() {
+        readLock.lock();
+    }
+
+    void unlockForReading() {
+        readLock.unlock();
+    }
+
+    void ensureOpen() {
+        if (!open)
+            throw new ClosedFileSystemException();
+    }
+
+    boolean exists(VolumePath path) {
+        String name = path.getVolumeFileName();
+        if (name.isEmpty())
+            return true;
+        readLock.lock();
+        try {
+            ensureOpen();
+            return volume.exists(name);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    VolumeFileChannel newFileChannel(VolumePath path, Set<? extends OpenOption> options) throws IOException {
+        boolean append = options.contains(StandardOpenOption.APPEND);
+        boolean writable = append || options.contains(StandardOpenOption.WRITE);
+        boolean readable = options.contains(StandardOpenOption.READ) || !writable;
+        if (append && (readable || options.contains(StandardOpenOption.TRUNCATE_EXISTING)))
+            throw new IllegalArgumentException("APPEND can't be used with READ or TRUNCATE_EXISTING");
+
+        String name = getFileName(path);
+        lock.lock();
+        try {
+            ensureOpen();
+            if (volume.exists(name)) {
+                if (writable && options.contains(StandardOpenOption.CREATE_NEW))
+                    throw new FileAlreadyExistsException(path.toString());
+            } else if (writable && (options.contains(StandardOpenOption.CREATE)
+                    || options.contains(StandardOpenOption.CREATE_NEW))) {
+                volume.create(name);
+            } else {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            int openFile = volume.openFile(name);
+            if (writable && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+                try {
+                    volume.truncate(openFile, 0);
+                } catch (FakeIOException e) {
+                    volume.closeFile(openFile);
+                    throw e;
+                }
+            }
+            return new VolumeFileChannel(this, openFile, readable, writable, append);
+        } catch (FakeIOException e) {
+            throw toFileSystemException(path, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    DirectoryStream<Path> newDirectoryStream(VolumePath dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        if (!dir.getVolumeFileName().isEmpty())
+            throw new NotDirectoryException(dir.toString());
+
+        List<String> names;
+        readLock.lock();
+        try {
+            ensureOpen();
+            names = volume.getFileNames();
+        } finally {
+            readLock.unlock();
+        }
+
+        List<Path> entries = new ArrayList<>(names.size());
+        for (String name : names) {
+            Path entry = dir.resolve(name);
+            if (filter.accept(entry))
+                entries.add(entry);
+        }
+        return new DirectoryStream<>() {
+            private boolean iteratorReturned = false;
+
+            @Override
+            public Iterator<Path> iterator() {
+                if (iteratorReturned)
+                    throw new IllegalStateException("Iterator was already returned");
+                iteratorReturned = true;
+                return entries.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    void delete(VolumePath path) throws IOException {
+        String name = getFileName(path);
+        lock.lock();
+        try {
+            ensureOpen();
+            if (!volume.exists(name))
+                throw new NoSuchFileException(path.toString());
+            volume.destroy(name);
+        } catch (FakeIOException e) {
+            throw toFileSystemException(path, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy data of a file to another file in the same volume
+     */
+    void copy(VolumePath source, VolumePath target, boolean replace) throws IOException {
+        if (source.getVolumeFileName().equals(target.getVolumeFileName()))
+            return;
+
+        Set<StandardOpenOption> targetOptions = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        if (replace)
+            targetOptions = EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        try (VolumeFileChannel input = newFileChannel(source, EnumSet.of(StandardOpenOption.READ));
+             VolumeFileChannel output = newFileChannel(target, targetOptions)) {
+            ByteBuffer buffer = ByteBuffer.allocate(volume.getMaxFileSize());
+            while (input.read(buffer) > 0) {
+                buffer.flip();
+                output.write(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    VolumeFileAttributes readAttributes(VolumePath path) throws IOException {
+        String name = path.getVolumeFileName();
+        if (name.isEmpty())
+            return new VolumeFileAttributes(true, 0, name);
+
+        //Size of a file which is not open may be loaded into the attribute cache, so this is not a read-only call
+        lock.lock();
+        try {
+            ensureOpen();
+            if (!volume.exists(name))
+                throw new NoSuchFileException(path.toString());
+            return new VolumeFileAttributes(false, volume.getFileSize(name), name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return name of a file in the volume
+     * @throws FileSystemException path points to the root directory
+     */
+    private static String getFileName(VolumePath path) throws FileSystemException {
+        String name = path.getVolumeFileName();
+        if (name.isEmpty())
+            throw new FileSystemException(path.toString(), null, "Is a directory");
+        return name;
+    }
+
+    private static FileSystemException toFileSystemException(Path path, FakeIOException e) {
+        return new FileSystemException(path.toString(), null, e.getMessage());
+    }
+
+    @Override
+    public VolumeFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Sync the volume and stop accepting new requests. The volume itself stays usable through {@link FileSystem}.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (!open)
+                return;
+            open = false;
+            volume.sync();
+        } finally {
+            lock.unlock();
+        }
+        provider.removeFileSystem(id);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.singletonList(rootDirectory);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        if (more.length == 0)
+            return VolumePath.parse(this, first);
+        return VolumePath.parse(this, first + "/" + String.join("/", more));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        //Paths look the same as Unix paths, so the default matcher can do the work
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+        return path -> matcher.matches(FileSystems.getDefault().getPath(path.toString()));
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("Volumes don't have users");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("Volumes can't be watched");
+    }
+}
@@ -0,0 +1,259 @@
+package ua.knu.csc.fs.nio;
+
+import ua.knu.csc.fs.filesystem.FileSystem;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lets java.nio.file work with volumes, so that {@link java.nio.file.Files} and other libraries
+ * can copy, stream and list files without knowing about {@link FileSystem}.
+ * <p>
+ * A volume has to be registered first:
+ * <pre>
+ * java.nio.file.FileSystem fs = FileSystems.newFileSystem(
+ *         URI.create("ufs://volume1/"),
+ *         Map.of(VolumeFileSystemProvider.ENV_FILE_SYSTEM, fileSystem)
+ * );
+ * Files.copy(Path.of("input.txt"), fs.getPath("/input.txt"));
+ * </pre>
+ * Volumes only have a root directory, the rest of the path is used as file name.
+ */
+public final class VolumeFileSystemProvider extends FileSystemProvider {
+    public static final String SCHEME = "ufs";
+    /**
+     * Environment key for the {@link FileSystem} to expose, required
+     */
+    public static final String ENV_FILE_SYSTEM = "fileSystem";
+    /**
+     * Environment key for a {@link ReadWriteLock} or a {@link Lock} which guards the {@link FileSystem}, optional.
+     * Pass the same lock to everything else that uses the volume, e.g. the file server,
+     * giving the write side of a ReadWriteLock to users which only take a Lock.
+     * Read-only calls only share a ReadWriteLock, a plain Lock serializes everything.
+     */
+    public static final String ENV_LOCK = "lock";
+
+    /**
+     * Volume ID -> open file system
+     */
+    private final HashMap<String, VolumeFileSystem> fileSystems = new HashMap<>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    private String getVolumeId(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()) || uri.getAuthority() == null)
+            throw new IllegalArgumentException("URI should look like " + SCHEME + "://<volume ID>/<path>: " + uri);
+        return uri.getAuthority();
+    }
+
+    @Override
+    public synchronized VolumeFileSystem newFileSystem(URI uri, Map<String, ?> env) {
+        String id = getVolumeId(uri);
+        if (!(env.get(ENV_FILE_SYSTEM) instanceof FileSystem))
+            throw new IllegalArgumentException("Environment should contain the volume under \"" + ENV_FILE_SYSTEM + "\"");
+        Object lock = env.get(ENV_LOCK);
+        if (lock != null && !(lock instanceof ReadWriteLock) && !(lock instanceof Lock)) {
+            throw new IllegalArgumentException("\"" + ENV_LOCK + "\" should be a "
+                    + ReadWriteLock.class.getName() + " or a " + Lock.class.getName());
+        }
+        if (fileSystems.containsKey(id))
+            throw new FileSystemAlreadyExistsException(id);
+
+        FileSystem volume = (FileSystem) env.get(ENV_FILE_SYSTEM);
+        VolumeFileSystem fileSystem = lock instanceof Lock
+                ? new VolumeFileSystem(this, id, volume, (Lock) lock)
+                : new VolumeFileSystem(this, id, volume, lock == null ? new ReentrantReadWriteLock() : (ReadWriteLock) lock);
+        fileSystems.put(id, fileSystem);
+        return fileSystem;
+    }
+
+    @Override
+    public synchronized VolumeFileSystem getFileSystem(URI uri) {
+        VolumeFileSystem fileSystem = fileSystems.get(getVolumeId(uri));
+        if (fileSystem == null)
+            throw new FileSystemNotFoundException(uri.toString());
+        return fileSystem;
+    }
+
+    synchronized void removeFileSystem(String id) {
+        fileSystems.remove(id);
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String path = uri.getPath();
+        return getFileSystem(uri).getPath(path == null || path.isEmpty() ? "/" : path);
+    }
+
+    private static VolumePath toVolumePath(Path path) {
+        if (!(path instanceof VolumePath))
+            throw new ProviderMismatchException();
+        return (VolumePath) path;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+            throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+            throws IOException {
+        if (attrs.length > 0)
+            throw new UnsupportedOperationException("Files in a volume don't have attributes to set");
+        VolumePath volumePath = toVolumePath(path);
+        return volumePath.getFileSystem().newFileChannel(volumePath, options);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        VolumePath volumePath = toVolumePath(dir);
+        return volumePath.getFileSystem().newDirectoryStream(volumePath, filter);
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        if (toVolumePath(dir).getVolumeFileName().isEmpty())
+            throw new FileAlreadyExistsException(dir.toString());
+        throw new UnsupportedOperationException("Volumes only have a root directory");
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        VolumePath volumePath = toVolumePath(path);
+        volumePath.getFileSystem().delete(volumePath);
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        VolumePath sourcePath = toVolumePath(source);
+        VolumePath targetPath = toVolumePath(target);
+        if (sourcePath.getFileSystem() != targetPath.getFileSystem())
+            throw new ProviderMismatchException("Can't copy between volumes directly");
+        boolean replace = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+        sourcePath.getFileSystem().copy(sourcePath, targetPath, replace);
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        //There is no rename operation, so data gets copied
+        if (isSameFile(source, target))
+            return;
+        copy(source, target, options);
+        delete(source);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) {
+        if (!(path instanceof VolumePath) || !(path2 instanceof VolumePath))
+            return false;
+        VolumePath first = (VolumePath) path;
+        VolumePath second = (VolumePath) path2;
+        return first.getFileSystem() == second.getFileSystem()
+                && first.getVolumeFileName().equals(second.getVolumeFileName());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException("Volumes don't have file stores");
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        VolumePath volumePath = toVolumePath(path);
+        if (Arrays.asList(modes).contains(AccessMode.EXECUTE))
+            throw new UnsupportedOperationException("Files in a volume can't be executed");
+        if (!volumePath.getFileSystem().exists(volumePath))
+            throw new NoSuchFileException(path.toString());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class)
+            return null;
+        VolumePath volumePath = toVolumePath(path);
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return volumePath.getFileSystem().readAttributes(volumePath);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new UnsupportedOperationException("Volumes don't keep timestamps");
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+            throws IOException {
+        if (type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException("Only basic attributes are supported");
+        VolumePath volumePath = toVolumePath(path);
+        return (A) volumePath.getFileSystem().readAttributes(volumePath);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+            throws IOException {
+        int colon = attributes.indexOf(':');
+        if (colon >= 0) {
+            if (!attributes.substring(0, colon).equals("basic"))
+                throw new UnsupportedOperationException("Only basic attributes are supported");
+            attributes = attributes.substring(colon + 1);
+        }
+        VolumePath volumePath = toVolumePath(path);
+        return volumePath.getFileSystem().readAttributes(volumePath).toMap(attributes);
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new UnsupportedOperationException("Files in a volume don't have attributes to set");
+    }
+}
@@ -0,0 +1,225 @@
+package ua.knu.csc.fs.nio;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Path in a volume. Volumes only have a root directory, but file names may contain '/',
+ * so "/docs/a.txt" refers to the file named "docs/a.txt".
+ */
+final class VolumePath implements Path {
+    private final VolumeFileSystem fileSystem;
+    private final boolean absolute;
+    private final String[] names;
+
+    VolumePath(VolumeFileSystem fileSystem, boolean absolute, String[] names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    static VolumePath parse(VolumeFileSystem fileSystem, String path) {
+        List<String> names = new ArrayList<>();
+        for (String name : path.split("/")) {
+            if (!name.isEmpty())
+                names.add(name);
+        }
+        return new VolumePath(fileSystem, path.startsWith("/"), names.toArray(new String[0]));
+    }
+
+    /**
+     * @return name of the file in the volume, empty string for the root directory
+     */
+    String getVolumeFileName() {
+        VolumePath path = (VolumePath) toAbsolutePath().normalize();
+        return String.join("/", path.names);
+    }
+
+    private VolumePath toVolumePath(Path other) {
+        if (!(other instanceof VolumePath) || ((VolumePath) other).fileSystem != fileSystem)
+            throw new ProviderMismatchException();
+        return (VolumePath) other;
+    }
+
+    @Override
+    public VolumeFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? fileSystem.getRootDirectory() : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        if (names.length == 0)
+            return null;
+        return new VolumePath(fileSystem, false, new String[] { names[names.length - 1] });
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.length == 0 || (names.length == 1 && !absolute))
+            return null;
+        return new VolumePath(fileSystem, absolute, Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException("Invalid name range: " + beginIndex + ", " + endIndex);
+        return new VolumePath(fileSystem, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof VolumePath))
+            return false;
+        VolumePath path = (VolumePath) other;
+        if (path.fileSystem != fileSystem || path.absolute != absolute || path.names.length > names.length)
+            return false;
+        return Arrays.equals(names, 0, path.names.length, path.names, 0, path.names.length);
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof VolumePath))
+            return false;
+        VolumePath path = (VolumePath) other;
+        if (path.fileSystem != fileSystem || path.names.length > names.length)
+            return false;
+        if (path.absolute)
+            return equals(path);
+        return Arrays.equals(names, names.length - path.names.length, names.length, path.names, 0, path.names.length);
+    }
+
+    @Override
+    public Path normalize() {
+        ArrayList<String> normalized = new ArrayList<>();
+        for (String name : names) {
+            if (name.equals("."))
+                continue;
+            if (name.equals("..")) {
+                if (!normalized.isEmpty() && !normalized.get(normalized.size() - 1).equals("..")) {
+                    normalized.remove(normalized.size() - 1);
+                    continue;
+                }
+                //Can't go above root
+                if (absolute)
+                    continue;
+            }
+            normalized.add(name);
+        }
+        return new VolumePath(fileSystem, absolute, normalized.toArray(new String[0]));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        VolumePath path = toVolumePath(other);
+        if (path.absolute)
+            return path;
+        String[] resolved = Arrays.copyOf(names, names.length + path.names.length);
+        System.arraycopy(path.names, 0, resolved, names.length, path.names.length);
+        return new VolumePath(fileSystem, absolute, resolved);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(parse(fileSystem, other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        VolumePath path = toVolumePath(other);
+        if (path.absolute != absolute)
+            throw new IllegalArgumentException("Both paths should be either absolute or relative");
+
+        int common = 0;
+        while (common < names.length && common < path.names.length && names[common].equals(path.names[common]))
+            common++;
+
+        ArrayList<String> relative = new ArrayList<>();
+        for (int i = common; i < names.length; i++)
+            relative.add("..");
+        relative.addAll(Arrays.asList(path.names).subList(common, path.names.length));
+        return new VolumePath(fileSystem, false, relative.toArray(new String[0]));
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(VolumeFileSystemProvider.SCHEME, fileSystem.getId(), toAbsolutePath().toString(), null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        //Working directory is always the root directory
+        return absolute ? this : new VolumePath(fileSystem, true, names);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws NoSuchFileException {
+        VolumePath path = (VolumePath) toAbsolutePath().normalize();
+        if (!fileSystem.exists(path))
+            throw new NoSuchFileException(toString());
+        return path;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("Volumes can't be watched");
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(toVolumePath(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof VolumePath))
+            return false;
+        VolumePath path = (VolumePath) other;
+        return path.fileSystem == fileSystem && path.absolute == absolute && Arrays.equals(path.names, names);
+    }
+
+    @Override
+    public int hashCode() {
+        return Boolean.hashCode(absolute) * 31 + Arrays.hashCode(names);
+    }
+
+    @Override
+    public String toString() {
+        String path = String.join("/", names);
+        return absolute ? "/" + path : path;
+    }
+}
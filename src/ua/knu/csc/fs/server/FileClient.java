@@ -0,0 +1,123 @@
+package ua.knu.csc.fs.server;
+
+import ua.knu.csc.fs.filesystem.FakeIOException;
+import ua.knu.csc.fs.filesystem.FileSystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Client for {@link FileServer}, methods mirror the ones in {@link FileSystem}.
+ * Errors reported by the file system are thrown as {@link FakeIOException}.
+ */
+public final class FileClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+
+    public FileClient(int port) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public void create(String fileName) throws IOException {
+        output.writeByte(Protocol.CREATE);
+        output.writeUTF(fileName);
+        receiveStatus();
+    }
+
+    public void destroy(String fileName) throws IOException {
+        output.writeByte(Protocol.DESTROY);
+        output.writeUTF(fileName);
+        receiveStatus();
+    }
+
+    /**
+     * @return handle of the opened file, only valid for this client
+     */
+    public int openFile(String fileName) throws IOException {
+        output.writeByte(Protocol.OPEN);
+        output.writeUTF(fileName);
+        receiveStatus();
+        return input.readInt();
+    }
+
+    public void closeFile(int openFile) throws IOException {
+        output.writeByte(Protocol.CLOSE);
+        output.writeInt(openFile);
+        receiveStatus();
+    }
+
+    /**
+     * @return amount of bytes read, {@link FileSystem#END_OF_FILE} if reached end of file
+     */
+    public int read(int openFile, byte[] buffer, int count) throws IOException {
+        if (count > buffer.length)
+            throw new IllegalArgumentException("Byte count is bigger than buffer size!");
+
+        output.writeByte(Protocol.READ);
+        output.writeInt(openFile);
+        output.writeInt(count);
+        receiveStatus();
+        int readCount = input.readInt();
+        if (readCount > 0)
+            input.readFully(buffer, 0, readCount);
+        return readCount;
+    }
+
+    public int write(int openFile, byte[] buffer, int count) throws IOException {
+        if (count > buffer.length)
+            throw new IllegalArgumentException("Byte count is bigger than buffer size!");
+
+        output.writeByte(Protocol.WRITE);
+        output.writeInt(openFile);
+        output.writeInt(count);
+        output.write(buffer, 0, count);
+        receiveStatus();
+        return input.readInt();
+    }
+
+    public void seek(int openFile, int position) throws IOException {
+        output.writeByte(Protocol.SEEK);
+        output.writeInt(openFile);
+        output.writeInt(position);
+        receiveStatus();
+    }
+
+    public String listFiles() throws IOException {
+        output.writeByte(Protocol.LIST);
+        receiveStatus();
+        return input.readUTF();
+    }
+
+    /**
+     * @return throughput of this client's session, as seen by the server
+     */
+    public SessionStats getStats() throws IOException {
+        output.writeByte(Protocol.STATS);
+        receiveStatus();
+        return new SessionStats(input.readLong(), input.readLong(), input.readLong(), input.readLong());
+    }
+
+    /**
+     * Send the request and wait for response status
+     * @throws FakeIOException server reported an error
+     */
+    private void receiveStatus() throws IOException {
+        output.flush();
+        if (input.readByte() == Protocol.STATUS_ERROR)
+            throw new FakeIOException(input.readUTF());
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
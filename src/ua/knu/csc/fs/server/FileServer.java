@@ -0,0 +1,111 @@
+package ua.knu.csc.fs.server;
+
+import ua.knu.csc.fs.filesystem.FileSystem;
+import ua.knu.csc.fs.filesystem.WriteBackFlusher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves a single {@link FileSystem} to local clients over a loopback socket, see {@link Protocol}.
+ * Every client session gets its own thread, virtual threads are used when the JVM supports them.
+ * Requests from different sessions are applied to the file system one at a time.
+ * Even reads hold the lock exclusively, since they move the position and fill the buffer of the open file.
+ */
+public final class FileServer implements Closeable {
+    private final FileSystem fileSystem;
+    private final Lock fileSystemLock = new ReentrantLock();
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessionExecutor;
+    private final PrintStream log;
+    private int sessionCount = 0;
+    private Thread flusherThread;
+
+    /**
+     * @param fileSystem file system to serve, should not be used by anything else while the server is running
+     * @param port port to listen on, 0 to pick any free port
+     * @param log where to report finished sessions and their throughput
+     */
+    public FileServer(FileSystem fileSystem, int port, PrintStream log) throws IOException {
+        this.fileSystem = fileSystem;
+        this.log = log;
+        this.serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        this.sessionExecutor = newSessionExecutor();
+    }
+
+    private static ExecutorService newSessionExecutor() {
+        try {
+            // Only available on Java 21+
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Start accepting clients in the background.
+     */
+    public void start() {
+        Thread acceptThread = new Thread(this::acceptClients, "file-server-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Write back dirty data of open files in the background, so that sessions rarely wait for it.
+     * @param maxAgeMillis how long data may stay dirty
+     * @param maxDirtyRatio which part of the open file cache, from 0 to 1, may be dirty
+     */
+    public synchronized void startFlusher(long maxAgeMillis, double maxDirtyRatio) {
+        if (flusherThread != null)
+            throw new IllegalStateException("Flusher is already running");
+        WriteBackFlusher flusher = new WriteBackFlusher(
+                fileSystem,
+                fileSystemLock,
+                maxAgeMillis,
+                maxDirtyRatio,
+                Math.max(1, maxAgeMillis / 4)
+        );
+        flusherThread = new Thread(flusher, "file-server-flusher");
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+    }
+
+    private void acceptClients() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    log.println("Failed to accept client: " + e.getMessage());
+                continue;
+            }
+            sessionExecutor.execute(new Session(++sessionCount, socket, fileSystem, fileSystemLock, log));
+        }
+    }
+
+    /**
+     * Stop accepting new clients. Sessions which are already running are allowed to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sessionExecutor.shutdown();
+        synchronized (this) {
+            if (flusherThread != null)
+                flusherThread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ua.knu.csc.fs.server;
+
+/**
+ * Binary protocol used between {@link FileServer} and {@link FileClient}.
+ * <p>
+ * Every request starts with 1 byte opcode, followed by arguments:
+ * names are sent as {@link java.io.DataOutput#writeUTF(String)}, numbers as 4-byte ints,
+ * data as an int length followed by the bytes.
+ * Every response starts with 1 byte status, {@link #STATUS_ERROR} is followed by an error message,
+ * {@link #STATUS_OK} is followed by the result of the operation (if there is one).
+ */
+final class Protocol {
+    /**
+     * name -> nothing
+     */
+    static final byte CREATE = 1;
+    /**
+     * name -> nothing
+     */
+    static final byte DESTROY = 2;
+    /**
+     * name -> int handle
+     */
+    static final byte OPEN = 3;
+    /**
+     * int handle -> nothing
+     */
+    static final byte CLOSE = 4;
+    /**
+     * int handle, int count -> int amount of bytes read (or END_OF_FILE), data
+     */
+    static final byte READ = 5;
+    /**
+     * int handle, data -> int amount of bytes written
+     */
+    static final byte WRITE = 6;
+    /**
+     * int handle, int position -> nothing
+     */
+    static final byte SEEK = 7;
+    /**
+     * nothing -> UTF string with file list
+     */
+    static final byte LIST = 8;
+    /**
+     * nothing -> long operation count, long bytes read, long bytes written, long session time in nanoseconds
+     */
+    static final byte STATS = 9;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    /**
+     * Max amount of bytes in a single read or write request
+     */
+    static final int MAX_TRANSFER_SIZE = 1 << 20;
+
+    private Protocol() {}
+}
@@ -0,0 +1,187 @@
+package ua.knu.csc.fs.server;
+
+import ua.knu.csc.fs.filesystem.FakeIOException;
+import ua.knu.csc.fs.filesystem.FileSystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Serves requests of a single client. Files opened in a session can only be used by that session,
+ * and are closed once the client disconnects.
+ */
+final class Session implements Runnable {
+    private final int id;
+    private final Socket socket;
+    private final FileSystem fileSystem;
+    private final Lock fileSystemLock;
+    private final PrintStream log;
+
+    /**
+     * Session handle -> open file index in the file system
+     */
+    private final HashMap<Integer, Integer> handles = new HashMap<>();
+    private int nextHandle = 0;
+
+    private final long startTime = System.nanoTime();
+    private long operations;
+    private long bytesRead;
+    private long bytesWritten;
+
+    Session(int id, Socket socket, FileSystem fileSystem, Lock fileSystemLock, PrintStream log) {
+        this.id = id;
+        this.socket = socket;
+        this.fileSystem = fileSystem;
+        this.fileSystemLock = fileSystemLock;
+        this.log = log;
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = this.socket;
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+
+            int opcode;
+            while ((opcode = input.read()) != -1) {
+                doRequest((byte) opcode, input, output);
+                operations++;
+                output.flush();
+            }
+        } catch (IOException e) {
+            log.println("session " + id + ": connection error: " + e.getMessage());
+        } finally {
+            closeAll();
+            log.println("session " + id + ": " + getStats());
+        }
+    }
+
+    /**
+     * Reads arguments of one request, runs it and writes the response.
+     * @throws IOException connection error, or the client does not follow the protocol
+     */
+    private void doRequest(byte opcode, DataInputStream input, DataOutputStream output) throws IOException {
+        // Read all arguments before touching the file system, so that errors don't break the stream
+        String name = null;
+        int handle = 0;
+        int number = 0;
+        byte[] data = null;
+        switch (opcode) {
+            case Protocol.CREATE, Protocol.DESTROY, Protocol.OPEN -> name = input.readUTF();
+            case Protocol.CLOSE -> handle = input.readInt();
+            case Protocol.READ, Protocol.SEEK -> {
+                handle = input.readInt();
+                number = input.readInt();
+            }
+            case Protocol.WRITE -> {
+                handle = input.readInt();
+                number = input.readInt();
+                if (number < 0 || number > Protocol.MAX_TRANSFER_SIZE)
+                    throw new IOException("Invalid write size " + number);
+                data = new byte[number];
+                input.readFully(data);
+            }
+            case Protocol.LIST, Protocol.STATS -> {}
+            default -> throw new IOException("Unknown opcode " + opcode);
+        }
+
+        fileSystemLock.lock();
+        try {
+            switch (opcode) {
+                case Protocol.CREATE -> {
+                    fileSystem.create(name);
+                    output.writeByte(Protocol.STATUS_OK);
+                }
+                case Protocol.DESTROY -> {
+                    fileSystem.destroy(name);
+                    output.writeByte(Protocol.STATUS_OK);
+                }
+                case Protocol.OPEN -> {
+                    int openFile = fileSystem.openFile(name);
+                    handles.put(nextHandle, openFile);
+                    output.writeByte(Protocol.STATUS_OK);
+                    output.writeInt(nextHandle++);
+                }
+                case Protocol.CLOSE -> {
+                    fileSystem.closeFile(getOpenFile(handle));
+                    handles.remove(handle);
+                    output.writeByte(Protocol.STATUS_OK);
+                }
+                case Protocol.READ -> {
+                    if (number < 0 || number > Protocol.MAX_TRANSFER_SIZE)
+                        throw new FakeIOException("Can't read " + number + " bytes at once");
+                    byte[] buffer = new byte[number];
+                    int readCount = fileSystem.read(getOpenFile(handle), buffer, number);
+                    output.writeByte(Protocol.STATUS_OK);
+                    output.writeInt(readCount);
+                    if (readCount > 0) {
+                        output.write(buffer, 0, readCount);
+                        bytesRead += readCount;
+                    }
+                }
+                case Protocol.WRITE -> {
+                    int writeCount = fileSystem.write(getOpenFile(handle), data, data.length);
+                    bytesWritten += writeCount;
+                    output.writeByte(Protocol.STATUS_OK);
+                    output.writeInt(writeCount);
+                }
+                case Protocol.SEEK -> {
+                    fileSystem.seek(getOpenFile(handle), number);
+                    output.writeByte(Protocol.STATUS_OK);
+                }
+                case Protocol.LIST -> {
+                    String files = fileSystem.listFiles();
+                    output.writeByte(Protocol.STATUS_OK);
+                    output.writeUTF(files);
+                }
+                case Protocol.STATS -> {
+                    SessionStats stats = getStats();
+                    output.writeByte(Protocol.STATUS_OK);
+                    output.writeLong(stats.operations);
+                    output.writeLong(stats.bytesRead);
+                    output.writeLong(stats.bytesWritten);
+                    output.writeLong(stats.elapsedNanos);
+                }
+            }
+        } catch (FakeIOException e) {
+            output.writeByte(Protocol.STATUS_ERROR);
+            output.writeUTF(e.getMessage());
+        } finally {
+            fileSystemLock.unlock();
+        }
+    }
+
+    private int getOpenFile(int handle) throws FakeIOException {
+        Integer openFile = handles.get(handle);
+        if (openFile == null)
+            throw new FakeIOException("No opened file with index " + handle);
+        return openFile;
+    }
+
+    private void closeAll() {
+        fileSystemLock.lock();
+        try {
+            for (int openFile : handles.values()) {
+                try {
+                    fileSystem.closeFile(openFile);
+                } catch (FakeIOException e) {
+                    log.println("session " + id + ": error while closing file: " + e.getMessage());
+                }
+            }
+            handles.clear();
+        } finally {
+            fileSystemLock.unlock();
+        }
+    }
+
+    SessionStats getStats() {
+        return new SessionStats(operations, bytesRead, bytesWritten, System.nanoTime() - startTime);
+    }
+}
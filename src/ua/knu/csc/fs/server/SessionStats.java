@@ -0,0 +1,39 @@
+package ua.knu.csc.fs.server;
+
+/**
+ * Throughput counters of a single client session.
+ */
+public final class SessionStats {
+    public final long operations;
+    public final long bytesRead;
+    public final long bytesWritten;
+    public final long elapsedNanos;
+
+    public SessionStats(long operations, long bytesRead, long bytesWritten, long elapsedNanos) {
+        this.operations = operations;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return amount of bytes read and written per second
+     */
+    public double getBytesPerSecond() {
+        if (elapsedNanos == 0)
+            return 0;
+        return (bytesRead + bytesWritten) * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d ops, %d bytes read, %d bytes written in %d ms (%.1f KiB/s)",
+                operations,
+                bytesRead,
+                bytesWritten,
+                elapsedNanos / 1_000_000,
+                getBytesPerSecond() / 1024
+        );
+    }
+}